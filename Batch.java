@@ -0,0 +1,123 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* chat lines in a room waiting to go out together, when batching is turned on
+* each line is copied in as it's said, and once the window's up (or enough lines have come in) the lot
+* goes to every member as one message, i.e. one write each instead of one per line
+* belongs to the room's loop like the member list
+* how much it's saving and how long lines have been held up is added up over all rooms, and logged
+* every so often so the window can be tuned (and counted in Metrics, if that's on)
+**/
+public class Batch {
+	public static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.batchMs", 0)); // 0 for no batching
+	public static final int MAX_LINES = Integer.getInteger("chat.batchLines", 64); // flushed early once it has this many
+	private static final long REPORT = TimeUnit.SECONDS.toNanos(Integer.getInteger("chat.batchReport", 60));
+
+	// added up over every room since the last report
+	private static final LongAdder lines = new LongAdder(); // lines batched
+	private static final LongAdder flushes = new LongAdder();
+	private static final LongAdder sends = new LongAdder(); // sends done, one per member per flush
+	private static final LongAdder unbatched = new LongAdder(); // sends it would have been, one per member per line
+	private static final LongAdder waited = new LongAdder(); // nanos lines spent waiting, all added up
+	private static final LongAccumulator longest = new LongAccumulator(Math::max, 0);
+	private static final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+
+	private byte[] buf;
+	private int len;
+	private int count; // lines in 'buf'
+	private long first; // System.nanoTime() the first of them came in
+	private long added; // all their System.nanoTime()s added up, to work out how long they waited
+	boolean scheduled; // a flush is already due
+
+	public Batch() {
+		this.buf = new byte[SharedBuffer.CHUNK];
+		this.len = 0;
+		this.count = 0;
+		this.scheduled = false;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	* adds 'a' + 'b' + 'c' as one line, returns true if that's enough lines to go now
+	**/
+	public boolean add(SharedBuffer a, SharedBuffer b, SharedBuffer c) {
+		int need = len + a.length() + b.length() + c.length();
+		if (need > buf.length) {
+			byte[] bigger = new byte[Math.max(need, buf.length * 2)];
+			System.arraycopy(buf, 0, bigger, 0, len);
+			buf = bigger;
+		}
+		put(a);
+		put(b);
+		put(c);
+		long now = System.nanoTime();
+		if (count == 0) {
+			first = now;
+			added = 0;
+		}
+		added += now;
+		count++;
+		return count >= MAX_LINES;
+	}
+
+	private void put(SharedBuffer p) {
+		int n = p.length();
+		p.view(0).get(buf, len, n);
+		len += n;
+	}
+
+	/**
+	* everything batched as one message (the caller releases it) and empties the batch, null if it's empty
+	* 'members' is how many it's about to go to, for the numbers
+	**/
+	public SharedBuffer take(int members) {
+		if (count == 0) {
+			return null;
+		}
+		SharedBuffer all = SharedBuffer.copyOf(buf, len);
+		long now = System.nanoTime();
+		lines.add(count);
+		flushes.increment();
+		sends.add(members);
+		unbatched.add((long) count * members);
+		waited.add(count * now - added);
+		longest.accumulate(now - first);
+		if (Metrics.ON) {
+			Metrics.batchedLines.add(count);
+			Metrics.batchSends.add(members);
+			Metrics.batchSendsSaved.add((long) (count - 1) * members);
+		}
+		if (buf.length > 4 * SharedBuffer.CHUNK) { // don't keep a big one after a burst
+			buf = new byte[SharedBuffer.CHUNK];
+		}
+		len = 0;
+		count = 0;
+		report(now);
+		return all;
+	}
+
+	/**
+	* logs what batching has done since last time, if it's been long enough
+	**/
+	private static void report(long now) {
+		long last = lastReport.get();
+		if (now - last < REPORT || !lastReport.compareAndSet(last, now)) {
+			return;
+		}
+		long l = lines.sumThenReset();
+		long f = flushes.sumThenReset();
+		long s = sends.sumThenReset();
+		long u = unbatched.sumThenReset();
+		long w = waited.sumThenReset();
+		long max = longest.getThenReset();
+		Log.info("batching", null, null, l + " lines in " + f + " flushes, " + s + " writes instead of " + u
+				+ (u == 0 ? "" : " (" + (100 * (u - s) / u) + "% fewer)") + ", lines waited "
+				+ String.format("%.2f", l == 0 ? 0.0 : w / 1e6 / l) + " ms on average and " + String.format("%.2f", max / 1e6) + " ms at most");
+	}
+}
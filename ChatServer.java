@@ -2,11 +2,30 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,269 +33,892 @@ public class ChatServer {
 	public static final int DEFAULT_PORT = 5555;
 	private static final String THIS_IS_YOU = "(** this is you!)";
 	private static final String ARROW = ">> ";
-	
-	private Lock lockSocks; // for the list of sockets
-	private Lock lockChatrooms; // for the list of people in each chatroom
-	private Lock lockReplies; // for the list of users to reply to
-	private HashMap<String,Socket> socks; // list of sockets for the chatroom
-	private HashMap<String, HashSet<String>> chatrooms; // chatroom and chatroom members
-	private HashMap<String, String> replyTo; // keeps track of who to reply to for each user
-	private ServerSocket server_sock;
-	private boolean nameChangeFail;
+	// bits of output that every broadcast shares, encoded once
+	private static final SharedBuffer PROMPT = SharedBuffer.constant(ARROW);
+	private static final SharedBuffer NEWLINE_PROMPT = SharedBuffer.constant("\n" + ARROW);
+	private static final SharedBuffer YOU_NEWLINE = SharedBuffer.constant(" " + THIS_IS_YOU + "\n");
+	private static final SharedBuffer ENTERING_ROOM = SharedBuffer.constant("Entering room: ");
+	private static final SharedBuffer YOU = SharedBuffer.constant(" " + THIS_IS_YOU);
+	private static final SharedBuffer EARLIER = SharedBuffer.constant("Recent messages: \n");
+	private static final SharedBuffer END_OF_EARLIER = SharedBuffer.constant(ARROW + "End of messages. \n" + ARROW);
+	// text that never changes, encoded once
+	private static final SharedBuffer GREETING = SharedBuffer.constant(ARROW + "Welcome to Katherine's chat server! \n"
+			+ ARROW + "What would you like your Username to be?\n" + ARROW);
+	private static final SharedBuffer LOBBY_HELP = SharedBuffer.constant(listOfCommands());
+	private static final SharedBuffer ROOM_HELP = SharedBuffer.constant(roomHelp());
+	private static final SharedBuffer ARROW_ROOM_HELP = SharedBuffer.constant(ARROW + roomHelp());
+	private static final SharedBuffer WHOOPS = SharedBuffer.constant(ARROW
+			+ "Whoops! That wasn't a valid command.. try typing \'/help\' for a list of commands! \n");
+
+	// "threads" gives every client its own thread, "nio" shares a few selector threads between everyone
+	private static final String IO_MODE = System.getProperty("chat.io", "threads");
+	private static final int REACTORS = Integer.getInteger("chat.reactors", Runtime.getRuntime().availableProcessors());
+	// what runs each requestHandler in threads mode: "platform", "virtual" (java 21+) or "pool"
+	private static final String THREAD_MODE = System.getProperty("chat.threads", "platform");
+	private static final int POOL_SIZE = Integer.getInteger("chat.poolSize", 200);
+	// most names /users and /rooms print at once
+	private static final int PAGE_SIZE = Integer.getInteger("chat.pageSize", 50);
+	// what /users and /rooms can be given: "[prefix] [page]", or "<prefix> <page> after <name>" to carry on from a page
+	private static final Pattern PAGE = Pattern.compile("(?:(.*) )?(\\d{1,9})");
+	private static final Pattern PAGE_AFTER = Pattern.compile("(.*?) (\\d{1,9}) after (.*)");
+	// seconds without any input before a client is disconnected (0 never does), and before a quiet
+	// client is sent a telnet NOP to check they're still there (0 never does)
+	private static final int IDLE_TIMEOUT = Integer.getInteger("chat.idleTimeout", 3600);
+	private static final int KEEPALIVE = Integer.getInteger("chat.keepalive", 0);
+	private static final SharedBuffer ROOM_BUSY = SharedBuffer.constant(ARROW
+			+ "This room is too busy right now, so that wasn't sent - try again in a moment. \n" + ARROW);
+	private static final SharedBuffer IAC_NOP = SharedBuffer.wrap(new byte[] { (byte) 0xff, (byte) 0xf1 });
+
+	// all concurrent maps - updates only ever lock the one key they touch
+	private ConcurrentHashMap<String, Session> socks; // list of sessions for the chatroom
+	private AtomicInteger longestName; // longest username logged in so far (anywhere in a cluster), /PM doesn't try longer ones
+	private ConcurrentHashMap<String, Room> chatrooms; // chatroom and chatroom members
+	private Replies replies; // keeps track of who to reply to for each user, and who replies to them
+	private SessionTable sessions; // every session by its number, for rooms to look their members up in
+	// the same users and rooms again, sorted by name, for listing them a page at a time
+	private ConcurrentSkipListMap<String, Session> userIndex;
+	private ConcurrentSkipListMap<String, Room> roomIndex;
+	private ServerSocketChannel server_channel;
+	private Executor writers; // drains outbound queues in threads mode
+	private RoomLoop[] roomLoops; // threads the rooms are spread over
+	private IdleReaper reaper; // null if nobody gets timed out
+	private Journal journal; // null unless chat.journal is set
+	private Snapshot snapshot; // null unless chat.snapshot is set
+	private Cluster cluster; // null unless chat.nodes is over 1
+	private CommandTable commandTable; // every /command, in the lobby and in rooms
+	private Listing.Cache userList; // what /users prints, rebuilt after someone logs in, out or changes name
+	private Listing.Cache roomList; // what /rooms prints, rebuilt after a room is made or deleted or someone comes or goes
+
+	/**
+	* where each client is at - decides what their next line of input means
+	**/
+	private enum State { LOGIN, LOBBY, ROOM, PM_BODY, CLOSED }
 
 	/**
 	* binds socket to port
 	**/
 	public ChatServer(int port) {
-		lockSocks = new ReentrantLock();
-		lockChatrooms = new ReentrantLock();
-		lockReplies = new ReentrantLock();
-		socks = new HashMap<String,Socket>();
-		chatrooms = new HashMap<String, HashSet<String>>(); 
-		replyTo = new HashMap<String, String>();
-		nameChangeFail = false;
+		this(port, null);
+	}
 
-		// auto create one chatroom so that the first user doesn't have to
-		chatrooms.put("main", new HashSet<String>());
+	/**
+	* one node of a cluster - in a cluster that shares a process, each has its own journal and snapshot
+	**/
+	public ChatServer(int port, Cluster cluster) {
+		this();
+		this.cluster = cluster;
+		String node = (cluster == null) ? "" : "-node" + cluster.node;
+		if (!Snapshot.FILE.isEmpty()) {
+			loadSnapshot(new File(Snapshot.FILE + node));
+		}
+		if (!Journal.DIR.isEmpty()) {
+			openJournal(new File(Journal.DIR + node));
+		}
+		if (snapshot != null) {
+			snapshot.start();
+		}
+		if (cluster != null) {
+			cluster.start(this::receive);
+		}
+		if (Metrics.ON && (cluster == null || cluster.node == 0)) { // the counters are shared by every node in the process
+			new Metrics(new Metrics.Source() {
+				public int users() {
+					return socks.size();
+				}
 
+				public Collection<Room> rooms() {
+					return chatrooms.values();
+				}
+			}).start();
+		}
+		if (IDLE_TIMEOUT > 0) {
+			reaper = new IdleReaper(IDLE_TIMEOUT, KEEPALIVE, TimeUnit.SECONDS);
+			reaper.start();
+		}
 		binding(port);
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		Log.info("accepting_connections", null, null, "accepting connections on port " + port + " after " + uptime + " ms, with " + chatrooms.size() + " rooms");
+		try {
+			if (IO_MODE.equals("nio")) {
+				createReactors();
+			} else {
+				createThreads();
+			}
+		} catch (IOException e) {
+			Log.error("client_threads_failed", null, null, "error creating threads for new clients", e);
+		}
+	}
+
+	/**
+	* everything but the socket - the benchmarks drive one of these directly
+	**/
+	ChatServer() {
+		socks = new ConcurrentHashMap<String, Session>();
+		longestName = new AtomicInteger();
+		chatrooms = new ConcurrentHashMap<String, Room>();
+		replies = new Replies();
+		sessions = new SessionTable();
+		userIndex = new ConcurrentSkipListMap<String, Session>();
+		roomIndex = new ConcurrentSkipListMap<String, Room>();
+		roomLoops = new RoomLoop[Math.max(1, RoomLoop.LOOPS)];
+		for (int i = 0; i < roomLoops.length; i++) {
+			roomLoops[i] = new RoomLoop();
+			roomLoops[i].start("rooms-" + i);
+		}
+
+		// auto create one chatroom so that the first user doesn't have to
+		Room main = newRoom("main");
+		chatrooms.put("main", main);
+		roomIndex.put("main", main);
+		userList = new Listing.Cache(this::buildUserList);
+		roomList = new Listing.Cache(this::buildRoomList);
+		commandTable = new CommandTable();
+		registerCommands();
+	}
+
+	/**
+	* true once nobody's input is waiting or being handled - for bench.RegistryStress to wait on
+	**/
+	boolean settled() {
+		for (Session s : sessions.snapshot()) {
+			if (s != null && !s.settled()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	* what's out of step between the lists of who's here, or null if they all agree - for
+	* bench.RegistryStress, once settled()
+	* every logged in session is in socks (and userIndex) under its name and the other way round,
+	* and every room's members are exactly the sessions in it, with its occupants to match
+	**/
+	String inconsistency() {
+		Session[] table = sessions.snapshot();
+		Map<Room, Integer> inRoom = new HashMap<Room, Integer>();
+		for (int id = 0; id < table.length; id++) {
+			Session s = table[id];
+			if (s == null || s.state == State.LOGIN) {
+				continue;
+			}
+			if (s.id != id) {
+				return "session " + s.id + " is at " + id + " in the session table";
+			}
+			if (socks.get(s.username) != s) {
+				return s.username + " (session " + id + ") isn't in socks under their name";
+			}
+			if (userIndex.get(s.username) != s) {
+				return s.username + " (session " + id + ") isn't in userIndex under their name";
+			}
+			if (s.state == State.ROOM) {
+				if (chatrooms.get(s.room.name) != s.room) {
+					return s.username + " is in " + s.room.name + ", which has been deleted";
+				}
+				inRoom.merge(s.room, 1, Integer::sum);
+			}
+		}
+		for (Map.Entry<String, Session> e : socks.entrySet()) {
+			Session s = e.getValue();
+			if (s.id >= table.length || table[s.id] != s || s.state == State.LOGIN || s.state == State.CLOSED) {
+				return e.getKey() + " is in socks but isn't a logged in session";
+			}
+			if (!s.username.equals(e.getKey())) {
+				return e.getKey() + " is in socks, but their session is called " + s.username;
+			}
+		}
+		if (userIndex.size() != socks.size()) {
+			return "userIndex has " + userIndex.size() + " users, socks has " + socks.size();
+		}
+		if (roomIndex.size() != chatrooms.size()) {
+			return "roomIndex has " + roomIndex.size() + " rooms, chatrooms has " + chatrooms.size();
+		}
+		for (Room room : chatrooms.values()) {
+			if (roomIndex.get(room.name) != room) {
+				return room.name + " isn't in roomIndex";
+			}
+			int expected = inRoom.getOrDefault(room, 0);
+			CompletableFuture<String> members = new CompletableFuture<String>();
+			room.loop.execute(() -> members.complete(membersInconsistency(room, expected))); // the members are the loop's
+			String wrong = members.join();
+			if (wrong != null) {
+				return wrong;
+			}
+		}
+		return null;
+	}
+
+	/**
+	* inconsistency() for one room's members, on its loop
+	**/
+	private String membersInconsistency(Room room, int expected) {
+		Session[] table = sessions.snapshot();
+		int[] ids = room.members.ids();
+		int n = room.members.size();
+		if (n != expected || n != room.occupants.get()) {
+			return room.name + " has " + n + " members, " + room.occupants.get() + " occupants and " + expected + " sessions in it";
+		}
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < n; i++) {
+			Session s = (ids[i] < table.length) ? table[ids[i]] : null;
+			if (s == null || s.room != room || s.state != State.ROOM) {
+				return room.name + " has session " + ids[i] + " as a member, who isn't in it";
+			}
+			if (!seen.add(ids[i])) {
+				return room.name + " has session " + ids[i] + " as a member twice";
+			}
+		}
+		return null;
+	}
+
+	/**
+	* fills in the command table
+	* a handler returns what to print before the prompt, or null if it's taken care of the user itself
+	**/
+	private void registerCommands() {
+		CommandTable t = commandTable;
+		int lobby = CommandTable.LOBBY;
+		int room = CommandTable.ROOM;
+
+		// lobby only
+		t.register("/join", lobby, (s, line, arg) -> join(getRestOfCommand(line, arg), s));
+		t.register("/rooms", lobby, (s, line, arg) -> printRooms(s, getRestOfCommand(line, arg)));
+		t.register("/createRoom", lobby, (s, line, arg) -> createRoom(getRestOfCommand(line, arg), s.username));
+		t.register("/deleteRoom", lobby, (s, line, arg) -> deleteRoom(getRestOfCommand(line, arg), s));
+		t.register("/changeUsername", lobby, (s, line, arg) -> changeUsername(getRestOfCommand(line, arg), s));
+		t.register("/help", lobby, (s, line, arg) -> reply(s, LOBBY_HELP));
+		t.register("/quit", lobby, (s, line, arg) -> {
+			quit(s);
+			return null;
+		});
+
+		// room only
+		t.register("/leave", room, (s, line, arg) -> { // user to leave the chatroom - remove from chatroom list
+			leaveRoom(s, "* user has left the chatroom: " + s.username);
+			s.state = State.LOBBY;
+			return "";
+		});
+		t.register("/history", room, (s, line, arg) -> history(getRestOfCommand(line, arg), s));
+		t.register("/help", room, (s, line, arg) -> reply(s, ARROW_ROOM_HELP));
+		t.register("/quit", room, (s, line, arg) -> {
+			leaveRoom(s, "* user has left the chatroom: " + s.username);
+			quit(s);
+			return null;
+		});
+
+		// both
+		for (int where = 0; where < 2; where++) {
+			t.register("/users", where, (s, line, arg) -> printUsers(s, getRestOfCommand(line, arg)));
+			t.register("/PM", where, (s, line, arg) -> {
+				String print = privateMessage(getRestOfCommand(line, arg), s);
+				return (s.state == State.PM_BODY) ? null : print; // waiting on the message itself
+			});
+			t.register("/replyPM", where, (s, line, arg) -> replyPM(line, arg, s.username));
+		}
+	}
+
+	/**
+	* brings back the rooms and recent messages from the journal, then journals everything from here on
+	**/
+	private void openJournal(File dir) {
+		try {
+			Journal j = new Journal(dir);
+			j.replay(new Journal.Replay() {
+				public void room(String name, int history) {
+					restoreRoom(name, history);
+				}
+
+				public void roomDeleted(String name) {
+					Room r = chatrooms.remove(name);
+					if (r != null) {
+						roomIndex.remove(name, r);
+						r.history.clear();
+					}
+				}
+
+				public void chat(String room, String user, byte[] message) {
+					Room r = chatrooms.get(room);
+					if (r != null) {
+						r.history.add(SharedBuffer.wrap((user + ": ").getBytes(StandardCharsets.UTF_8)), SharedBuffer.wrap(message));
+					}
+				}
+			});
+			roomList.changed();
+			if (snapshot != null) {
+				snapshot.changed(); // in case the journal had rooms the snapshot didn't
+			}
+			j.start(this::checkpoint);
+			journal = j;
+		} catch (IOException e) {
+			Log.error("journal_open_failed", null, null, "error opening the journal in " + dir + ", carrying on without one", e);
+		}
+	}
+
+	/**
+	* brings back the rooms in the snapshot, and keeps it up to date from here on
+	**/
+	private void loadSnapshot(File file) {
+		snapshot = new Snapshot(file, roomIndex.values());
 		try {
-			createThreads();
+			snapshot.load(this::restoreRoom);
 		} catch (IOException e) {
-			System.err.println("Error creating threads for new clients");
+			Log.error("snapshot_load_failed", null, null, "error reading snapshot " + file + ", starting without it", e);
+		}
+		roomList.changed();
+	}
+
+	/**
+	* what the other nodes in the cluster say, on the bus's thread
+	**/
+	private void receive(MessageBus.Message m) {
+		Room r;
+		switch (m.type) {
+			case Cluster.ROOM:
+				r = replica(m.a);
+				r.loop.execute(() -> {
+					if (r.history.size() != m.number) {
+						r.history.resize(m.number);
+						if (journal != null) {
+							journal.roomCreated(r.name, r.history.size());
+						}
+						if (snapshot != null) {
+							snapshot.changed();
+						}
+					}
+				});
+				break;
+			case Cluster.DELETE_ROOM:
+				cluster.reply(m, 0, deleteRoom(m.a, m.b));
+				break;
+			case Cluster.ROOM_DELETED:
+				r = removeRoom(m.a, false);
+				if (r != null) { // someone here got in before it went, so it's made again everywhere
+					cluster.publish(Cluster.ROOM, r.history.size(), r.name, null, null);
+				}
+				break;
+			case Cluster.ENTERED:
+				r = replica(m.a);
+				r.loop.execute(() -> {
+					r.elsewhere.add(m.b);
+					sendMessage(r, ENTERING_ROOM, m.b);
+					roomList.changed();
+				});
+				break;
+			case Cluster.LEFT:
+				r = chatrooms.get(m.a);
+				if (r != null) {
+					r.loop.execute(() -> {
+						r.elsewhere.remove(m.b);
+						sendMessageToChatroom(r, m.c, null);
+						roomList.changed();
+					});
+				}
+				break;
+			case Cluster.CHAT:
+				r = replica(m.a);
+				r.loop.execute(() -> {
+					SharedBuffer prefix = SharedBuffer.encode(m.b + ": ");
+					SharedBuffer line = SharedBuffer.encode(m.c);
+					say(r, m.b, prefix, line);
+					prefix.release();
+					line.release();
+				});
+				break;
+			case Cluster.PM:
+				receivePrivateMessage(m.a, m.b, m.c, m.from);
+				break;
+			case Cluster.LONGEST:
+				longestName.accumulateAndGet(m.number, Math::max);
+				break;
+			case Cluster.NOTICE:
+				Session s = socks.get(m.a);
+				if (s != null) {
+					try {
+						s.write(m.c);
+					} catch (IOException e) {
+						Log.warn("notice_failed", m.a, null, "problem passing on a notice from another node", e);
+					}
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	* this node's copy of a room the other nodes are using
+	* made here if this is the first it's heard of it, as what different nodes say can arrive in any order
+	**/
+	private Room replica(String name) {
+		Room r = chatrooms.get(name);
+		if (r != null) {
+			return r;
+		}
+		r = chatrooms.computeIfAbsent(name, n -> {
+			Room created = newRoom(n);
+			roomIndex.put(n, created);
+			if (journal != null) {
+				journal.roomCreated(n, created.history.size());
+			}
+			if (snapshot != null) {
+				snapshot.changed();
+			}
+			return created;
+		});
+		roomList.changed();
+		return r;
+	}
+
+	/**
+	* a room from the snapshot or journal, at startup
+	**/
+	private void restoreRoom(String name, int history) {
+		Room r = chatrooms.computeIfAbsent(name, n -> {
+			Room created = newRoom(n);
+			roomIndex.put(n, created);
+			return created;
+		});
+		if (r.history.size() != history) {
+			r.history.resize(history);
+		}
+	}
+
+	/**
+	* journals every room there is, at the start of each journal segment
+	**/
+	private void checkpoint(Journal j) {
+		for (Room r : chatrooms.values()) {
+			j.roomCreated(r.name, r.history.size());
 		}
 	}
 
 	private void binding(int port) {
 		try {
-			server_sock = new ServerSocket(port);
-			server_sock.setReuseAddress(true);
+			// channels in both modes - threads mode just leaves them blocking
+			server_channel = ServerSocketChannel.open();
+			server_channel.socket().setReuseAddress(true);
+			server_channel.bind(new InetSocketAddress(port));
 		} catch (IOException e) {
-			System.err.println("Creating socket failed.");
+			Log.error("bind_failed", null, null, "creating socket failed", e);
 			System.exit(1);
 		} catch (IllegalArgumentException e) {
-			System.err.println("Error binding to port.");
+			Log.error("bind_failed", null, null, "error binding to port", e);
 			System.exit(1);
-		} 
+		}
 	}
 
 	private void createThreads() throws IOException {
+		ExecutorService executor = handlerExecutor();
+		writers = writerExecutor();
 		try {
 			while (true) {
 				try {
 					// create thread, run()
-					Socket sock = server_sock.accept();
-					requestHandler rH = new requestHandler(sock);
-					Thread t = new Thread(rH);
-					t.start();
+					SocketChannel channel = server_channel.accept();
+					if (!connectionAllowed(channel)) {
+						continue;
+					}
+					requestHandler rH = new requestHandler(channel);
+					if (executor == null) {
+						Thread t = new Thread(rH);
+						t.start();
+					} else {
+						executor.execute(rH);
+					}
+				} catch (IOException e) {
+					Log.warn("accept_failed", null, null, "error accepting connection", e);
+					continue;
+				}
+			}
+		} finally {
+			server_channel.close();
+		}
+	}
+
+	/**
+	* checks the limit on new connections from the same address, and turns them away if they're over it
+	**/
+	private boolean connectionAllowed(SocketChannel channel) {
+		InetAddress from = channel.socket().getInetAddress();
+		if (Limits.connectionAllowed(from)) {
+			return true;
+		}
+		try {
+			channel.write(ByteBuffer.wrap((ARROW + "Too many connections from your address, try again later.\n").getBytes(StandardCharsets.UTF_8)));
+		} catch (IOException e) {
+			// they're going anyway
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.warn("close_failed", null, null, "error closing connection", e);
+		}
+		return false;
+	}
+
+	/**
+	* picks what runs the requestHandlers - null means a new platform thread each
+	* virtual threads are looked up by reflection so this still builds and runs on older jdks,
+	* which get the bounded pool instead
+	**/
+	private ExecutorService handlerExecutor() {
+		if (THREAD_MODE.equals("virtual")) {
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				Log.info("virtual_threads_unavailable", null, null, "virtual threads need Java 21, using a pool of " + POOL_SIZE + " threads instead");
+				return Executors.newFixedThreadPool(POOL_SIZE);
+			}
+		} else if (THREAD_MODE.equals("pool")) {
+			return Executors.newFixedThreadPool(POOL_SIZE);
+		}
+		return null;
+	}
+
+	/**
+	* picks what runs the outbound queue writers in threads mode
+	* they come and go with each backlog so they get cached threads rather than a fixed pool
+	**/
+	private Executor writerExecutor() {
+		if (THREAD_MODE.equals("virtual")) {
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// handlerExecutor() has already said so
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	* starts the selector threads and hands each accepted connection to one of them in turn
+	**/
+	private void createReactors() throws IOException {
+		Reactor[] reactors = new Reactor[Math.max(1, REACTORS)];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(this);
+			Thread t = new Thread(reactors[i], "reactor-" + i);
+			t.start();
+		}
+
+		int next = 0;
+		try {
+			while (true) {
+				try {
+					SocketChannel channel = server_channel.accept();
+					if (!connectionAllowed(channel)) {
+						continue;
+					}
+					reactors[next].register(channel);
+					next = (next + 1) % reactors.length;
 				} catch (IOException e) {
-					System.err.println("Error accepting connection.");
+					Log.warn("accept_failed", null, null, "error accepting connection", e);
 					continue;
 				}
 			}
 		} finally {
-			server_sock.close();
+			server_channel.close();
 		}
 	}
 
+	/**
+	* a new room, pinned to a loop by its name
+	**/
+	private Room newRoom(String name) {
+		RoomLoop loop = roomLoops[(name.hashCode() & 0x7fffffff) % roomLoops.length];
+		return new Room(name, loop);
+	}
+
+	/**
+	* makes a session for a new connection and greets it
+	**/
+	Session newSession(Connection conn) {
+		Session s = new Session(conn);
+		if (Metrics.ON) {
+			Metrics.connectionsOpened.increment();
+		}
+		greet(s);
+		if (reaper != null) {
+			reaper.track(s);
+		}
+		return s;
+	}
+
 	/**
 	* allows the user to use the given list of commands to do various tasks in the chatroom
 	*/
-	private void commands(String username, InputStream in, OutputStream out, Socket sock) throws IOException {
-		byte[] data = new byte[2000];
-		int len = 0;
+	void commands(Session s, String message) {
+		if (onlySpaces(message)) { // user didnt input anything; just continue
+			return;
+		}
+		CommandTable.Handler h = commandTable.find(message, CommandTable.LOBBY);
+		if (h == null) { // error - let the user know the list of commands!
+			reply(s, WHOOPS);
+			return;
+		}
+		String print = h.run(s, message, CommandTable.argStart(message));
+		if (print == null) {
+			return;
+		}
 
+		try {
+			s.write(print);
+			s.write(PROMPT);
+		} catch (IOException e) {
+			Log.warn("reply_failed", s.username, null, "problem printing the response to their command", e);
+		}
+	}
+
+	/**
+	* the list of commands shown in the lobby
+	**/
+	private static String listOfCommands() {
 		String listOfCommands = ARROW + "Here are a list of commands you can do! \n";
 		listOfCommands += ARROW + "* /join <Room Name>: lets you join the room called \'Room Name\' \n";
-		listOfCommands += ARROW + "* /rooms: prints out the list of rooms and how many people are in each \n";
+		listOfCommands += ARROW + "* /rooms [prefix] [page]: prints out the list of rooms and how many people are in each \n";
 		listOfCommands += ARROW + "* /createRoom <Room Name>: creates a chatroom called \'Room Name\' \n";
 		listOfCommands += ARROW + "* /deleteRoom <Room Name>: deletes the chatroom called \'Room Name\' \n";
 		listOfCommands += ARROW + "* /changeUsername <Username>: changes your username to \'Username\' \n";
 		listOfCommands += ARROW + "The following commands can also be run within chatrooms: \n";
-		listOfCommands += ARROW + "* /users: prints out the list of users are online \n";				
-		listOfCommands += ARROW + "* /PM <Username>: to privately message user, \'Username\' \n";
+		listOfCommands += ARROW + "* /users [prefix] [page]: prints out the list of users are online \n";
+		listOfCommands += ARROW + "* /PM <Username> <Message>: to privately message user, \'Username\', with \n";
+		listOfCommands += ARROW + "  \'Message\' (leave it out to be asked for it) \n";
 		listOfCommands += ARROW + "* /replyPM <Message>: private message last user who you last sent/recieved \n";
 		listOfCommands += ARROW + "  PM with \'Message\' \n";
 		listOfCommands += ARROW + "* /help <Room Name>: lists these command options \n";
 		listOfCommands += ARROW + "* /quit: to exit the chat server \n";
 		listOfCommands += ARROW + "End of list. \n";
+		return listOfCommands;
+	}
 
+	/**
+	* turns the rest of the command array into a string
+	*/
+	String getRestOfCommand(String line, int arg) {
+		// trailing spaces don't count, "" means there's no argument
+		int end = line.length();
+		while (end > arg && line.charAt(end - 1) == ' ') {
+			end--;
+		}
+		return line.substring(arg, end);
+	}
+
+	/**
+	* true for a line of nothing but spaces
+	**/
+	private static boolean onlySpaces(String line) {
+		if (line.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < line.length(); i++) {
+			if (line.charAt(i) != ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	* asks a new connection for their username
+	**/
+	private void greet(Session s) {
 		try {
-			out.write(listOfCommands.getBytes());
-			out.write(ARROW.getBytes());
+			s.write(GREETING);
 		} catch (IOException e) {
-			System.err.println("Printing out commands for " + username + " failed");
+			Log.warn("greet_failed", null, null, "error printing out the welcome message to new user", e);
 		}
+	}
 
-		while ((len = in.read(data)) != -1) {
-			String message = new String(data, 0, len);
-
-			String[] cmd = message.substring(0, message.length()-2).split(" ");
-			String print = "";
-			if (cmd.length == 0) { // user didnt input anything; just continue
-				continue;
-			}
-			if (cmd[0].equals("/join")) {
-				print = join(cmd, username, sock);
-				if (print.equals("")) {
-					return;
-				} else if (print.equals(" ")) {
-					print = "";
-				}
-			} else if (cmd[0].equals("/rooms")) {
-				print = printRooms(sock);
-			} else if (cmd[0].equals("/createRoom")) {
-				print = createRoom(cmd, username);
-			} else if (cmd[0].equals("/deleteRoom")) {
-				print = deleteRoom(cmd, username);
-			} else if (cmd[0].equals("/changeUsername")) {
-				print = changeUsername(cmd, username);
-				if (!nameChangeFail) {
-					username = print;
-					print = ARROW + "Name has been changed to: " + print + "\n";
-					nameChangeFail = false;
-				}
-			} else if (cmd[0].equals("/users")) {
-				print = printUsers(username, sock);
-			} else if (cmd[0].equals("/PM")) {
-				print = privateMessage(cmd, username, out);
-			} else if (cmd[0].equals("/replyPM")) {
-				print = replyPM(cmd, username, out);
-			} else if (cmd[0].equals("/help")) {
-				print = listOfCommands;
-			} else if (cmd[0].equals("/quit")) {
-				quit(username, out);
-				return;
-			} else { // error - let the user know the list of commands!
-				print = ARROW + "Whoops! That wasn't a valid command.. try typing \'/help\' for a list of commands! \n";
-			}
+	/**
+	* gets the username
+	**/
+	void getUsername(Session s, String username) {
+		claim(s, username, claimed -> loggedIn(s, username, claimed));
+	}
 
-			try { 
-				out.write(print.getBytes());
-				out.write(ARROW.getBytes());
-			} catch (IOException e) {
-				System.err.println("Problem printing response to " + username + "'s command request");
-			}
+	/**
+	* takes 'name' for 's' if nobody else has it, then runs 'then' with whether it did
+	* in a cluster a name owned by another node is claimed from it, and the rest of their input
+	* waits until it's answered
+	**/
+	private void claim(Session s, String name, Consumer<Boolean> then) {
+		if (cluster == null) {
+			then.accept(take(s, name));
+			return;
 		}
-		if (len == -1) { // user left - take them off the all lists
-			removeFromReplies(username);
-			removeFromSocks(username);
+		if (socks.containsKey(name)) {
+			then.accept(false);
 			return;
 		}
+		longer(name);
+		if (cluster.owns(name)) {
+			then.accept(cluster.claim(name, cluster.node) && takeClaimed(s, name));
+		} else {
+			s.await();
+			cluster.ask(cluster.owner(name), Cluster.CLAIM, name, null, null,
+					reply -> s.resume(() -> then.accept(reply.number == 1 && takeClaimed(s, name))));
+		}
 	}
 
 	/**
-	* turns the rest of the command array into a string
-	*/
-	private String getRestOfCommand(String[] command) {
-		// we can assume that command.length > 1
-		String rtn = "";
-		for (int i = 1; i < command.length; i++) {
-			rtn += command[i];
-			if (i != command.length - 1) {
-				rtn += " ";
-			}
+	* makes room for 'name' in longestName, and if that's longer than before tells the other nodes
+	* it goes out before the claim, so they've heard it before anything this node says about the user
+	**/
+	private void longer(String name) {
+		int len = name.length();
+		if (longestName.getAndAccumulate(len, Math::max) < len) {
+			cluster.publish(Cluster.LONGEST, len, null, null, null);
 		}
-		return rtn;
 	}
 
 	/**
-	* gets the username
-	**/ 
-	private String getUsername(InputStream in, OutputStream out, Socket sock) throws IOException {
-		byte[] data = new byte[2000];
-		int len = 0;
+	* take() for a name the cluster has just given this node - if 's' can't have it after all, the
+	* claim's given back, otherwise nobody anywhere could use the name again
+	**/
+	private boolean takeClaimed(Session s, String name) {
+		if (take(s, name)) {
+			return true;
+		}
+		release(name);
+		return false;
+	}
 
-		String greeting = ARROW + "Welcome to Katherine's chat server! \n";
-		greeting += ARROW + "What would you like your Username to be?\n";
-		greeting += ARROW;
+	/**
+	* puts 's' in socks under 'name' if nobody here has it
+	**/
+	private boolean take(Session s, String name) {
+		if (socks.putIfAbsent(name, s) != null) {
+			return false;
+		}
+		longestName.accumulateAndGet(name.length(), Math::max);
+		return true;
+	}
 
-		try {
-			out.write(greeting.getBytes());
-		} catch (IOException e) {
-			System.err.println("Error printing out the welcome message to new user");
-		}
-
-		String username = "";
-		boolean loop = false;
-
-		while ((len = in.read(data)) != -1) {
-			username = new String(data, 0, len-2);
-			lockSocks.lock();
-			if (!socks.containsKey(username)) { // user gave an unused name
-				loop = false;
-				socks.put(username, sock);
-			} else { // user gave a name someone else already chose
-				loop = true;
-				String tryAgain = ARROW + "That user name has been taken!\n";
-				tryAgain += ARROW + "Username? \n";
-				tryAgain += ARROW;
-				try {
-					out.write(tryAgain.getBytes());
-				} catch (IOException e) {
-					System.err.println("Error prompting user pick a username");
-				}
-			}
-			lockSocks.unlock();
+	/**
+	* gives up a name that's no longer in use, on whichever node owns it
+	**/
+	private void release(String name) {
+		if (cluster != null) {
+			cluster.release(name);
+		}
+	}
 
-			if (!loop) { // valid username
-				String customWelcome = ARROW + "Welcome " + username + "!\n";
-				try {
-					out.write(customWelcome.getBytes());
-				} catch (IOException e) {
-					System.err.println("Error welcoming " + username + " to the chat server");
-				}
-				break;
+	/**
+	* logs them in as 'username' if they got it, otherwise asks again
+	**/
+	private void loggedIn(Session s, String username, boolean claimed) {
+		if (!claimed) { // user gave a name someone else already chose
+			String tryAgain = ARROW + "That user name has been taken!\n";
+			tryAgain += ARROW + "Username? \n";
+			tryAgain += ARROW;
+			try {
+				s.write(tryAgain);
+			} catch (IOException e) {
+				Log.warn("greet_failed", null, null, "error prompting user to pick a username", e);
 			}
+			return;
 		}
-		if (len == -1) { // user left; close the socket			
-			sock.close();
-			return "";
+
+		userIndex.put(username, s);
+		userList.changed();
+		s.setUsername(username);
+		s.state = State.LOBBY;
+		String customWelcome = ARROW + "Welcome " + username + "!\n";
+		try {
+			s.write(customWelcome);
+			// lets the user join or create chatrooms
+			// or see a menu with command options or quit
+			s.write(LOBBY_HELP);
+			s.write(PROMPT);
+		} catch (IOException e) {
+			Log.warn("greet_failed", username, null, "error welcoming them to the chat server", e);
 		}
-		return username;
-	}	
+	}
 
-	/** 
+	/**
 	* handles the /join command
-	* returns empty string if user has left the chat server (and not just the chatromm)
+	* returns null once the user is in the room
 	**/
-	private String join(String[] cmd, String username, Socket sock) {
-		if (cmd.length < 2) {
+	private String join(String groupName, Session s) {
+		if (groupName.isEmpty()) {
 			String incorrectArgs = ARROW + "Please specify a chatroom name after \'/join\'. \n";
 			return incorrectArgs;
 		}
 
-		String groupName = getRestOfCommand(cmd);
-		if (!chatrooms.containsKey(groupName)) {
+		// counted in under the room's own key, so /deleteRoom can't sneak in between
+		Room room = chatrooms.computeIfPresent(groupName, (name, r) -> {
+			r.occupants.incrementAndGet();
+			return r;
+		});
+		if (room == null) {
 			String noGroup = ARROW + "That is not an available chatroom name. \n";
 			noGroup += ARROW + "Please try \'/rooms\' for a list of available rooms. \n";
 			return noGroup;
 		}
 
+		roomList.changed();
+
+		// from here on their input is handled on the room's loop, after they've been let in
+		s.room = room;
+		s.loop = room.loop;
+		s.state = State.ROOM;
+		if (room.loop.inLoop()) {
+			enterRoom(s, room);
+		} else {
+			room.loop.execute(() -> enterRoom(s, room));
+		}
+		return null;
+	}
+
+	/**
+	* adds the user to the room's members and welcomes them, on the room's loop
+	**/
+	private void enterRoom(Session s, Room room) {
+		flush(room); // lines from before they came in aren't for them
+		room.members.add(s.id);
+		newUserToGroup(s.username, room, s);
+		if (cluster != null) {
+			cluster.publish(Cluster.ENTERED, 0, room.name, s.username, null);
+		}
+
 		try {
-			newUserToGroup(username, groupName, sock);
-			if (chat(groupName, username, sock.getInputStream(), sock.getOutputStream(), sock) == -1) {
-				return "";
+			SharedBuffer earlier = room.history.replay();
+			if (earlier != null) { // what they missed, in one go
+				s.conn.send(EARLIER, earlier, END_OF_EARLIER);
 			}
+			s.write(ROOM_HELP);
+			s.write(PROMPT);
 		} catch (IOException e) {
-			System.err.println("Error geting " + username + "'s input or output stream");
+			Log.warn("room_help_failed", s.username, room.name, "printing chatroom commands failed", e);
 		}
-		return " ";
-	}	
+	}
 
 	/**
 	* takes care of the /createRoom command
 	**/
-	private String createRoom(String[] cmd, String username) {
-		if (cmd.length < 2) {
+	String createRoom(String groupName, String username) {
+		if (groupName.isEmpty()) {
 			String incorrectArgs = ARROW + "Please specify a chatroom name after \'/createRoom\'. \n";
 			return incorrectArgs;
 		}
 
-		String groupName = getRestOfCommand(cmd);
-		lockChatrooms.lock();
-		chatrooms.put(groupName, new HashSet<String>());
-		lockChatrooms.unlock();
+		chatrooms.computeIfAbsent(groupName, name -> {
+			Room r = newRoom(name);
+			roomIndex.put(name, r);
+			if (journal != null) {
+				journal.roomCreated(name, r.history.size());
+			}
+			if (snapshot != null) {
+				snapshot.changed();
+			}
+			if (cluster != null) {
+				cluster.publish(Cluster.ROOM, r.history.size(), name, null, null);
+			}
+			return r;
+		});
+		roomList.changed();
 
 		String created = ARROW + groupName + " created. \n";
 		return created;
@@ -284,506 +926,831 @@ public class ChatServer {
 
 	/**
 	* takes care of the /deleteRoom command
-	**/ 
-	private String deleteRoom(String[] cmd, String username) {
-		if (cmd.length < 2) {
+	* in a cluster only the room's owner knows whether anyone's in it anywhere, so it's asked
+	**/
+	private String deleteRoom(String groupName, Session s) {
+		if (cluster == null || groupName.isEmpty() || !chatrooms.containsKey(groupName) || cluster.owns(groupName)) {
+			return deleteRoom(groupName, s.username);
+		}
+		s.await();
+		cluster.ask(cluster.owner(groupName), Cluster.DELETE_ROOM, groupName, s.username, null,
+				reply -> s.resume(() -> tell(s, reply.c)));
+		return null;
+	}
+
+	/**
+	* deletes the room if nobody's in it, returns what to tell whoever asked
+	**/
+	private String deleteRoom(String groupName, String username) {
+		if (groupName.isEmpty()) {
 			String incorrectArgs = ARROW + "Please specify a chatroom name after \'/deleteRoom\'. \n";
 			return incorrectArgs;
 		}
 
-		String groupName = getRestOfCommand(cmd);
-		lockChatrooms.lock();
 		if (!chatrooms.containsKey(groupName)) {
 			String noRoom = ARROW + "There is no room called " + groupName + " found. \n";
-			lockChatrooms.unlock();
 			return noRoom;
 		}
 
-		HashSet<String> members = chatrooms.get(groupName);
-		if (members.size() != 0) {
+		Room left = removeRoom(groupName, true);
+		if (left != null) {
 			String noDelete = ARROW + "You can't delete a room with people still in it! \n";
-			lockChatrooms.unlock();
 			return noDelete;
 		}
-
-		chatrooms.remove(groupName);
-		lockChatrooms.unlock();
+		if (cluster != null) {
+			cluster.publish(Cluster.ROOM_DELETED, 0, groupName, null, null);
+		}
 
 		String deleted = ARROW + groupName + " deleted. \n";
 		return deleted;
-	}	
+	}
 
 	/**
-	* gets and returns the desired name
+	* removes the room if it's empty - on this node, or everywhere if 'everywhere' is set
+	* checked and removed under the room's key, the same one join() adds members under
+	* returns the room if it's still there
 	**/
-	private String changeUsername(String[] cmd, String username) {
-		if (cmd.length < 2) {
+	private Room removeRoom(String groupName, boolean everywhere) {
+		Room left = chatrooms.computeIfPresent(groupName, (name, r) -> {
+			if (r.occupants.get() != 0 || (everywhere && r.elsewhere != null && !r.elsewhere.isEmpty())) {
+				return r;
+			}
+			roomIndex.remove(name, r);
+			r.loop.execute(r.history::clear);
+			if (journal != null) {
+				journal.roomDeleted(name);
+			}
+			if (snapshot != null) {
+				snapshot.changed();
+			}
+			return null;
+		});
+		if (left == null) {
+			roomList.changed();
+		}
+		return left;
+	}
+
+	/**
+	* changes the user's name, returns what to tell them
+	**/
+	private String changeUsername(String desiredName, Session s) {
+		if (desiredName.isEmpty()) {
 			String incorrectArgs = ARROW + "Please specify a username you want to change to after \'/changeUsername\'. \n";
-			nameChangeFail = true;
 			return incorrectArgs;
-		} 
-
-		String desiredName = getRestOfCommand(cmd);
-		if (socks.containsKey(desiredName)) {
-			String takenName = ARROW + "That name has already been taken! Please choose another. \n";
-			nameChangeFail = true;
-			return takenName;
 		}
 
-		nameChangeFail = false;
-		changeUsername(username, desiredName);
-		return desiredName;
+		claim(s, desiredName, claimed -> { // claims the new name if it's free
+			if (!claimed) {
+				String takenName = ARROW + "That name has already been taken! Please choose another. \n";
+				tell(s, takenName);
+				return;
+			}
+			userIndex.put(desiredName, s);
+
+			String currentName = s.username;
+			s.setUsername(desiredName); // before the old name goes, see renamedMeanwhile()
+			changeUsername(currentName, desiredName, s);
+			tell(s, ARROW + "Name has been changed to: " + desiredName + "\n");
+		});
+		return null;
 	}
 
-	/** 
-	* does the username change for the socks and the replyTo hashmaps
+	/**
+	* does the username change for socks and replies
+	* the new name has already been claimed in socks
+	* replies are moved after the old name's out of socks, so a PM that still finds them under it
+	* gets moved along too (or moves itself, see renamedMeanwhile())
 	*/
-	private void changeUsername(String currentName, String desiredName) {
-		lockReplies.lock();
-		String value = replyTo.get(currentName);
-		replyTo.remove(currentName);
-		replyTo.put(desiredName, value);
-		if (replyTo.containsValue(currentName)) {
-			for (String key: replyTo.keySet()) {
-				if (replyTo.get(key).equals(currentName)) {
-					replyTo.put(key, desiredName);
-					break;
-				}
-			}
-		}
-		lockReplies.unlock();
+	private void changeUsername(String currentName, String desiredName, Session s) {
+		socks.remove(currentName, s);
+		userIndex.remove(currentName, s);
+		userList.changed();
+		replies.rename(currentName, desiredName);
+		release(currentName);
+	}
 
-		lockSocks.lock();
-		Socket sock = socks.get(currentName);
-		socks.remove(currentName);
-		socks.put(desiredName, sock);
-		lockSocks.unlock();
-	}	
+	/**
+	* a PM was just recorded in replies against 'name', which was 's''s when it was looked up
+	* if they've changed name since, the rename may have moved their replies before this one was
+	* recorded - so it's moved over to their new name now
+	**/
+	private void renamedMeanwhile(String name, Session s) {
+		if (socks.get(name) != s && !s.username.equals(name)) {
+			replies.rename(name, s.username);
+		}
+	}
 
 	/**
 	* handles new user functions when they join a chat room
 	**/
-	private void newUserToGroup(String username, String groupName, Socket newSock) {
-		String welcome = ARROW + "Welcome to " + groupName + "!\n" + ARROW;
+	private void newUserToGroup(String username, Room room, Session newUser) {
+		String welcome = ARROW + "Welcome to " + room.name + "!\n" + ARROW;
 		try {
-			newSock.getOutputStream().write(welcome.getBytes());
+			newUser.write(welcome);
 		} catch (IOException e) {
-			System.err.println("Error welcoming " + username + " to " + groupName);
+			Log.warn("room_welcome_failed", username, room.name, "error welcoming them to the room", e);
 		}
 
-		lockChatrooms.lock();
-		HashSet<String> members = chatrooms.get(groupName);
-		members.add(username);
-		lockChatrooms.unlock();
-
 		// tell everyone in the chatroom that new user has entered
-		String message = "Entering room: " + username + "\n";
-		sendMessage(groupName, message, username);
+		sendMessage(room, ENTERING_ROOM, username);
 
 		String users = "Current users online: \n";
-
-		Socket s;
-		OutputStream out;
-		lockChatrooms.lock();
-		lockSocks.lock();
-		Iterator<String> it = members.iterator();
-		while (it.hasNext()) {
-			String n = it.next();
-			s = socks.get(n);
-			users += ARROW + "* " + n + " ";
-			if (s == newSock) {
+		Session[] table = sessions.snapshot();
+		int[] ids = room.members.ids();
+		for (int i = 0, n = room.members.size(); i < n; i++) {
+			Session s = table[ids[i]];
+			users += ARROW + "* " + s.username + " ";
+			if (s == newUser) {
 				users += THIS_IS_YOU;
 			}
 			users += "\n";
 		}
-		lockSocks.unlock();
-		lockChatrooms.unlock();
+		if (room.elsewhere != null) {
+			for (String name : room.elsewhere) {
+				users += ARROW + "* " + name + " \n";
+			}
+		}
 		users += ARROW + "End of list. \n" + ARROW;
 
 		try {
-			newSock.getOutputStream().write(users.getBytes());
+			newUser.write(users);
 		} catch (IOException e) {
-			System.err.println("Error: message sending failed for: " + username);
+			Log.warn("room_welcome_failed", username, room.name, "error sending them the member list", e);
 		}
 	}
 
 	/**
-	* allows the user to chat in the specified chat room
-	**/ 
-	private int chat(String groupName, String username, InputStream in, OutputStream out, Socket sock) throws IOException {
+	* the list of commands shown inside a chatroom
+	**/
+	private static String roomHelp() {
 		String help = "You can use the following commands in the chatroom: \n";
 		help += ARROW + "* /leave: to leave the chatroom \n";
-		help += ARROW + "* /users: prints out the list of users are online \n";				
-		help += ARROW + "* /PM <Username>: to privately message user, \'Username\' \n";
+		help += ARROW + "* /users [prefix] [page]: prints out the list of users are online \n";
+		help += ARROW + "* /PM <Username> <Message>: to privately message user, \'Username\', with \n";
+		help += ARROW + "  \'Message\' (leave it out to be asked for it) \n";
 		help += ARROW + "* /replyPM <Message>: private message last user who you last sent/recieved \n";
 		help += ARROW + "  PM with \'Message\' \n";
+		help += ARROW + "* /history <Number>: how many past messages the room shows people who join \n";
 		help += ARROW + "* /help <Room Name>: lists these command options \n";
 		help += ARROW + "* /quit: to exit the chat server \n";
 		help += ARROW + "End of list. \n";
-		
+		return help;
+	}
+
+	/**
+	* allows the user to chat in the specified chat room
+	**/
+	void chat(Session s, String message) {
+		// only a line starting with '/' can be a command, anything else goes straight out
+		CommandTable.Handler h = null;
+		if (message.length() > 0 && message.charAt(0) == '/') {
+			h = commandTable.find(message, CommandTable.ROOM);
+		}
+		if (h == null) { // a normal message to the members of the chatroom
+			if (s.room.limit != null && s.room.limit.tryTake(1) > 0) {
+				try {
+					s.write(ROOM_BUSY);
+				} catch (IOException e) {
+					Log.warn("reply_failed", s.username, s.room.name, "telling them the room is busy failed", e);
+				}
+				return;
+			}
+			try {
+				s.write(PROMPT);
+			} catch (IOException e) {
+				Log.warn("prompt_failed", s.username, s.room.name, "printing the arrow failed", e);
+			}
+			sendChat(s, message);
+			return;
+		}
+
+		String print = h.run(s, message, CommandTable.argStart(message));
+		if (print == null) {
+			return;
+		}
 		try {
-			out.write(help.getBytes());
-			out.write(ARROW.getBytes());
+			s.write(print);
+			s.write(PROMPT);
 		} catch (IOException e) {
-			System.err.println("Printing chatroom commands for " + username + " in group " + groupName + "failed");
+			Log.warn("prompt_failed", s.username, null, "printing the arrow failed", e);
+		}
+	}
+
+
+	/**
+	* tells the room the user is going and takes them off its member list, on the room's loop
+	**/
+	private void leaveRoom(Session s, String leftRoom) {
+		sendMessageToChatroom(s.room, leftRoom, s);
+		if (cluster != null) {
+			cluster.publish(Cluster.LEFT, 0, s.room.name, s.username, leftRoom);
+		}
+		s.room.members.remove(s.id);
+		s.room.occupants.decrementAndGet();
+		roomList.changed();
+		s.room = null;
+		s.loop = null;
+	}
+
+	/**
+	* sends 'prefix' + 'message' + a fresh prompt to everyone in the room, on the room's loop
+	* the message is encoded once and the same buffers are queued for every member
+	**/
+	void sendMessage(Room room, SharedBuffer prefix, String message) {
+		flush(room);
+		SharedBuffer m = SharedBuffer.encode(message);
+		broadcast(room, prefix, m);
+		m.release();
+	}
+
+	private void broadcast(Room room, SharedBuffer prefix, SharedBuffer m) {
+		long start = Metrics.ON ? System.nanoTime() : 0;
+		Session[] table = sessions.snapshot();
+		int[] ids = room.members.ids();
+		for (int i = 0, n = room.members.size(); i < n; i++) {
+			Session s = table[ids[i]];
+			try {
+				s.conn.send(prefix, m, NEWLINE_PROMPT);
+			} catch (IOException e) {
+				Log.warn("send_failed", s.username, room.name, "message sending failed", e);
+			}
+		}
+		if (Metrics.ON) {
+			Metrics.fanout.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	* sends a chat line from 's' to their room like any other message, and keeps it in the room's history
+	**/
+	private void sendChat(Session s, String message) {
+		SharedBuffer m = SharedBuffer.encode(message);
+		say(s.room, s.username, s.prefix, m);
+		m.release();
+		if (cluster != null) {
+			cluster.publish(Cluster.CHAT, 0, s.room.name, s.username, message);
+		}
+	}
+
+	/**
+	* a chat line from 'user' (here or on another node) out to the room's members here, on the room's loop
+	**/
+	private void say(Room room, String user, SharedBuffer prefix, SharedBuffer m) {
+		if (room.batch != null) {
+			batch(room, prefix, m);
+		} else {
+			broadcast(room, prefix, m);
+		}
+		room.history.add(prefix, m);
+		if (journal != null) {
+			journal.chat(room.name, user, m);
+		}
+	}
+
+	/**
+	* holds a chat line back to go out with the others said in the same window, on the room's loop
+	**/
+	private void batch(Room room, SharedBuffer prefix, SharedBuffer m) {
+		Batch b = room.batch;
+		if (b.add(prefix, m, NEWLINE_PROMPT)) {
+			flush(room);
+		} else if (!b.scheduled) {
+			b.scheduled = true;
+			room.loop.schedule(() -> {
+				b.scheduled = false;
+				flush(room);
+			}, Batch.WINDOW);
+		}
+	}
+
+	/**
+	* sends whatever chat lines the room's holding back, as one message to each member
+	* anything else the room sends goes after this, so nothing overtakes a line said before it
+	**/
+	private void flush(Room room) {
+		if (room.batch == null || room.batch.isEmpty()) {
+			return;
+		}
+		SharedBuffer all = room.batch.take(room.members.size());
+		long start = Metrics.ON ? System.nanoTime() : 0;
+		Session[] table = sessions.snapshot();
+		int[] ids = room.members.ids();
+		for (int i = 0, n = room.members.size(); i < n; i++) {
+			Session s = table[ids[i]];
+			try {
+				s.conn.send(all, null, null);
+			} catch (IOException e) {
+				Log.warn("send_failed", s.username, room.name, "message sending failed", e);
+			}
+		}
+		if (Metrics.ON) {
+			Metrics.fanout.record(System.nanoTime() - start);
+		}
+		all.release();
+	}
+
+	/**
+	* takes care of the /history command, on the room's loop
+	**/
+	private String history(String size, Session s) {
+		int n;
+		try {
+			n = Integer.parseInt(size);
+		} catch (NumberFormatException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			String incorrectArgs = ARROW + "Please give how many messages to keep after \'/history\', e.g. \'/history 20\'. \n";
+			incorrectArgs += ARROW + s.room.name + " keeps " + s.room.history.size() + " right now. \n";
+			return incorrectArgs;
+		}
+
+		s.room.history.resize(n);
+		if (journal != null) {
+			journal.roomCreated(s.room.name, s.room.history.size());
+		}
+		if (snapshot != null) {
+			snapshot.changed();
+		}
+		if (cluster != null) {
+			cluster.publish(Cluster.ROOM, s.room.history.size(), s.room.name, null, null);
+		}
+		return ARROW + s.room.name + " now keeps the last " + s.room.history.size() + " messages. \n";
+	}
+
+	/**
+	* sends a message to everyone
+	* for the messages when someone leaves - 'leaving' is them if they're here, otherwise null
+	**/
+	private void sendMessageToChatroom(Room room, String message, Session leaving) {
+		flush(room);
+		SharedBuffer m = SharedBuffer.encode(message);
+		Session[] table = sessions.snapshot();
+		int[] ids = room.members.ids();
+		for (int i = 0, n = room.members.size(); i < n; i++) {
+			Session s = table[ids[i]];
+			try {
+				if (s == leaving) {
+					s.conn.send(PROMPT, m, YOU_NEWLINE);
+				} else {
+					s.conn.send(m, NEWLINE_PROMPT, null);
+				}
+			} catch (IOException e) {
+				Log.warn("send_failed", s.username, room.name, "message sending failed", e);
+			}
+		}
+		m.release();
+	}
+
+	/**
+	* prints the list of available rooms and the number of people currently in it
+	* if no rooms are open, it suggests the user to create one
+	* a plain /rooms comes from a cache that's only built again after something's changed - the whole
+	* list, or its first page once there are more rooms than fit on one - anything else is paged
+	*/
+	String printRooms(Session s, String query) {
+		if (query.isEmpty()) {
+			return reply(s, roomList.get().text);
+		}
+		return page(roomIndex, query, "rooms", "Active rooms are", "/rooms",
+				(name, room) -> ARROW + "* " + name + " (" + room.people() + ") \n");
+	}
+
+	String printRooms(Session s) {
+		return printRooms(s, "");
+	}
+
+	private Listing buildRoomList(long version) {
+		Listing.Builder b = new Listing.Builder();
+		if (chatrooms.isEmpty()) {
+			b.add(ARROW + "There are no chatrooms open right now! \n");
+			b.add(ARROW + "You can create one by using the \'/createRoom <Room Name>\' command. \n");
+			return b.build(version);
+		}
+
+		// the same as page() would print for the first page, once there's more than one
+		boolean paged = chatrooms.size() > PAGE_SIZE;
+		b.add(ARROW + "Active rooms are" + (paged ? " (page 1)" : "") + ": \n");
+		Iterator<Room> it = roomIndex.values().iterator();
+		String last = null;
+		for (int n = 0; (!paged || n < PAGE_SIZE) && it.hasNext(); n++) {
+			Room room = it.next();
+			b.add(ARROW + "* " + room.name + " (" + room.people() + ") \n");
+			last = room.name;
+		}
+		if (it.hasNext()) {
+			b.add(more("/rooms", "*", 2, last));
+		}
+		b.add(ARROW + "End of list. \n");
+		return b.build(version);
+	}
+
+	/**
+	* prints all online users, or a page of them
+	* a plain /users is the same cached list for everyone (just the first page once there's more than
+	* one), with their own line marked on the way out
+	**/
+	String printUsers(Session s, String query) {
+		if (!query.isEmpty()) {
+			return page(userIndex, query, "users", "The following users are online", "/users",
+					(name, user) -> ARROW + "* " + name + (user == s ? " " + THIS_IS_YOU : "") + "\n");
+		}
+
+		Listing l = userList.get();
+		int at = l.mark(s.username);
+		if (at < 0) {
+			return reply(s, l.text);
+		}
+		try {
+			s.conn.send(l.text.slice(0, at), YOU, l.text.slice(at, l.text.length()));
+			s.write(PROMPT);
+		} catch (IOException e) {
+			Log.warn("reply_failed", s.username, null, "problem printing the response to their command", e);
+		}
+		return null;
+	}
+
+	private Listing buildUserList(long version) {
+		Listing.Builder b = new Listing.Builder();
+		boolean paged = userIndex.size() > PAGE_SIZE; // first page only, as page() would print it
+		b.add(ARROW + "The following users are online" + (paged ? " (page 1)" : "") + ": \n");
+		Iterator<String> it = userIndex.keySet().iterator();
+		String last = null;
+		for (int n = 0; (!paged || n < PAGE_SIZE) && it.hasNext(); n++) {
+			last = it.next();
+			b.add(ARROW + "* ").addMarked(last).add("\n");
+		}
+		if (it.hasNext()) {
+			b.add(more("/users", "*", 2, last));
+		}
+		b.add(ARROW + "End of list. \n");
+		return b.build(version);
+	}
+
+	String printUsers(Session s) {
+		return printUsers(s, "");
+	}
+
+	/**
+	* one page of the names in 'index' that start with a prefix, for /users and /rooms
+	* 'query' is "[prefix] [page]" - a prefix of "*" (or none) matches everything, pages start at 1 and
+	* a number on its own is a page (so '/users 2' is the second page, '/users 2 1' is names starting with 2)
+	* every page ends by pointing at the next as "<prefix> <page> after <last name>", which starts with a
+	* skip list lookup however far in it is - a bare page number walks past the pages before it
+	**/
+	private <V> String page(ConcurrentSkipListMap<String, V> index, String query, String what, String heading,
+			String command, BiFunction<String, V, String> line) {
+		String prefix = query;
+		int page = 1;
+		String after = null; // the last name on the page before, if they came from one
+		Matcher m = PAGE_AFTER.matcher(query);
+		if (m.matches()) {
+			prefix = m.group(1);
+			page = Math.max(1, Integer.parseInt(m.group(2)));
+			after = m.group(3);
+		} else if ((m = PAGE.matcher(query)).matches()) {
+			prefix = (m.group(1) == null) ? "" : m.group(1);
+			page = Math.max(1, Integer.parseInt(m.group(2)));
+		}
+		boolean all = prefix.isEmpty() || prefix.equals("*");
+		String from = all ? "" : prefix; // the first name that can match
+		boolean fromIncluded = true;
+		if (after != null && after.compareTo(from) >= 0) {
+			from = after;
+			fromIncluded = false;
+		}
+		Map<String, V> matches;
+		if (all) {
+			matches = index.tailMap(from, fromIncluded);
+		} else if (from.compareTo(prefix + Character.MAX_VALUE) >= 0) { // carrying on from past the last one
+			matches = Collections.emptyMap();
+		} else {
+			matches = index.subMap(from, fromIncluded, prefix + Character.MAX_VALUE, false);
 		}
-		
-		byte[] data = new byte[2000];
-		int len = 0;
 
-		while ((len = in.read(data)) != -1) {
-			String message = new String(data, 0, len);
-
-			String[] cmd = message.substring(0, message.length()-2).split(" ");
-			String print = "";
-			boolean needArrow = true;
-			if (cmd[0].equals("/leave")) { // user to leave the chatroom - remove from chatroom list
-				String leftRoom = "* user has left the chatroom: " + username;
-				sendMessageToChatroom(groupName, leftRoom, username);
-				lockChatrooms.lock();
-				HashSet members = chatrooms.get(groupName);
-				members.remove(username);
-				lockChatrooms.unlock();
-				return 0;
-			} else if (cmd[0].equals("/PM")) {
-				print = privateMessage(cmd, username, out);
-			} else if (cmd[0].equals("/replyPM")) {
-				print = replyPM(cmd, username, out);
-			} else if (cmd[0].equals("/users")) {
-				print = printUsers(username, sock);
-			} else if (cmd[0].equals("/quit")) {
-				String leftRoom = "* user has left the chatroom: " + username;
-				sendMessageToChatroom(groupName, leftRoom, username);
-				lockChatrooms.lock();
-				HashSet members = chatrooms.get(groupName);
-				members.remove(username);
-				lockChatrooms.unlock();				
-				quit(username, out);
-				return -1;
-			} else if (cmd[0].equals("/help")) {
-				print = ARROW + help;
-			} else { // a normal message to the members of the chatroom
-				out.write(ARROW.getBytes());
-				sendMessage(groupName, username + ": " + message, username);
-				needArrow = false;
-			}
+		Iterator<Map.Entry<String, V>> it = matches.entrySet().iterator();
+		for (int skip = (after == null) ? (page - 1) * PAGE_SIZE : 0; skip > 0 && it.hasNext(); skip--) {
+			it.next();
+		}
+		if (!it.hasNext()) {
+			return ARROW + "No " + what + (all ? "" : " starting with \'" + prefix + "\'") + (page > 1 ? " on page " + page : "") + ". \n";
+		}
 
-			try {
-				out.write(print.getBytes());
-				if (needArrow) out.write(ARROW.getBytes());
-			} catch (IOException e) {
-				System.err.println("Printing the arrow for user " + username + " failed");
-			}
+		StringBuilder b = new StringBuilder(ARROW);
+		b.append(all ? heading : "The " + what + " starting with \'" + prefix + "\' are");
+		b.append(" (page ").append(page).append("): \n");
+		String last = null;
+		for (int n = 0; n < PAGE_SIZE && it.hasNext(); n++) {
+			Map.Entry<String, V> e = it.next();
+			b.append(line.apply(e.getKey(), e.getValue()));
+			last = e.getKey();
 		}
-		if (len == -1) { // if user leaves server remove them from all lists and close the socket
-			String leftRoom = ARROW + "* user has left chat: " + username;
-			sendMessageToChatroom(groupName, leftRoom, username);
-			lockChatrooms.lock();
-			HashSet members = chatrooms.get(groupName);
-			members.remove(username);
-			lockChatrooms.unlock();
-			
-			removeFromSocks(username);
-			return -1;
+		if (it.hasNext()) {
+			b.append(more(command, all ? "*" : prefix, page + 1, last));
 		}
-		return 0;
+		b.append(ARROW + "End of list. \n");
+		return b.toString();
 	}
 
 	/**
-	* sends a message to everyone but the sender's room for now
+	* the line at the end of a page that says how to get the next one, which carries on after 'last'
 	**/
-	private void sendMessage(String groupName, String message, String username) {
-		byte[] m = (message + ARROW).getBytes();
-		OutputStream out;
-		Socket s;
+	private static String more(String command, String prefix, int page, String last) {
+		return ARROW + "There's more - try \'" + command + " " + prefix + " " + page + " after " + last + "\' \n";
+	}
 
-		lockChatrooms.lock();
-		lockSocks.lock();
-		HashSet<String> members = chatrooms.get(groupName);
-		Iterator<String> it = members.iterator();
-		while (it.hasNext()) {
-			String n = it.next();
-			try {
-				s = socks.get(n);
-				out = s.getOutputStream();
-				out.write(m);
-			} catch (IOException e) {
-				System.err.println("Message sending failed for " + n);
-					lockChatrooms.unlock();
-					lockSocks.unlock();
-				return;
-			}
+	/**
+	* what a command handler would have returned, for when the answer came later
+	**/
+	private void tell(Session s, String print) {
+		try {
+			s.write(print);
+			s.write(PROMPT);
+		} catch (IOException e) {
+			Log.warn("reply_failed", s.username, null, "problem printing the response to their command", e);
 		}
-		lockChatrooms.unlock();
-		lockSocks.unlock();
 	}
 
 	/**
-	* sends a message to everyone
-	* for the messages when someone leaves
-	**/
-	private void sendMessageToChatroom(String groupName, String message, String username) {
-		byte[] mToRest = (message + "\n" + ARROW).getBytes();
-		byte[] mToSender = (ARROW + message + " " + THIS_IS_YOU + "\n").getBytes();
-		byte[] m = mToRest;
-		OutputStream out;
-		Socket s;
-
-		lockChatrooms.lock();
-		lockSocks.lock();
-		HashSet<String> members = chatrooms.get(groupName);
-		Iterator<String> it = members.iterator();
-		while (it.hasNext()) {
-			String n = it.next();
-			try {
-				s = socks.get(n);
-				out = s.getOutputStream();
-				if (n.equals(username)) {
-					m = mToSender;
-				}
-				out.write(m);
-				m = mToRest;
-			} catch (IOException e) {
-				System.err.println("Error: message sending failed for: " + n);
-				lockChatrooms.unlock();
-				lockSocks.unlock();
-				return;
-			}
+	* sends 'text' and a fresh prompt
+	* returns null, so a command handler can finish with it
+	**/
+	private String reply(Session s, SharedBuffer text) {
+		try {
+			s.conn.send(text, PROMPT, null);
+		} catch (IOException e) {
+			Log.warn("reply_failed", s.username, null, "problem printing the response to their command", e);
 		}
-		lockChatrooms.unlock();
-		lockSocks.unlock();
-	}	
+		return null;
+	}
+
 
 	/**
-	* prints the list of available rooms and the number of people currently in it
-	* if no rooms are open, it suggests the user to create one
-	*/
-	private String printRooms(Socket sock) {
-		lockChatrooms.lock();
-		if (chatrooms.size() == 0) {
-			String noRooms = ARROW + "There are no chatrooms open right now! \n";
-			noRooms += ARROW + "You can create one by using the \'/createRoom <Room Name>\' command. \n";
-			lockChatrooms.unlock();
-			return noRooms;
+	* '/PM <Username> <Message>' sends the message straight away
+	* '/PM <Username>' prompts for the message and takes their next line as it
+	* usernames can have spaces in, so the longest name that's logged in wins
+	**/
+	private String privateMessage(String rest, Session s) {
+		if (rest.isEmpty()) {
+			String incorrectArgs = ARROW + "Please specify a user you want to private message after \'/PM\'. \n";
+			return incorrectArgs;
 		}
-
-		String rooms = ARROW + "Active rooms are: \n";
-		for (String chatroomName : chatrooms.keySet()) {
-			HashSet<String> members = chatrooms.get(chatroomName);
-			rooms += ARROW + "* " + chatroomName + " (" + members.size() + ") \n";
+		int end = rest.length();
+		if (end > longestName.get()) { // nobody has a name that long, so it has a message on the end
+			end = rest.lastIndexOf(' ', longestName.get());
+			if (end <= 0) {
+				return ARROW + "User not found: " + rest + " \n";
+			}
 		}
-		lockChatrooms.unlock();
-		rooms += ARROW + "End of list. \n";
-		return rooms;
-	}	
+		findRecipient(s, rest, end);
+		return null;
+	}
 
 	/**
-	* prints all online users 
+	* tries the first 'end' characters of 'rest' as the username, then each shorter name that ends
+	* at a space - whatever comes after the name is the message
 	**/
-	private String printUsers(String username, Socket sock) {
-		String users = 	ARROW + "The following users are online: \n";
+	private void findRecipient(Session s, String rest, int end) {
+		String user = rest.substring(0, end);
+		if (socks.containsKey(user)) {
+			privateMessage(s, rest, end, -1);
+			return;
+		}
 
-		lockSocks.lock();
-		for (String user : socks.keySet()) {
-			users += ARROW + "* " + user;
-			if (user.equals(username)) {
-				users += " " + THIS_IS_YOU;
+		int shorter = rest.lastIndexOf(' ', end - 1);
+		if (cluster == null) {
+			if (shorter > 0) {
+				findRecipient(s, rest, shorter);
+			} else {
+				tell(s, ARROW + "User not found: " + rest + " \n");
 			}
-			users += "\n";
+			return;
 		}
-		lockSocks.unlock();
-
-		users += ARROW + "End of list. \n";
-		return users;
-	}	
+		locate(s, user, at -> { // they could be on another node
+			if (at >= 0) {
+				privateMessage(s, rest, end, at);
+			} else if (shorter > 0) {
+				findRecipient(s, rest, shorter);
+			} else {
+				tell(s, ARROW + "User not found: " + rest + " \n");
+			}
+		});
+	}
 
 	/**
-	* prompts user for the username of whoever they want to PM
-	* then asks them for a message they want to send and then sends it
+	* PMs the user named by the first 'end' characters of 'rest', who's on node 'at' (-1 for this one)
 	**/
-	private String privateMessage(String[] cmd, String username, OutputStream out) {
-		if (cmd.length < 2) {					
-			String incorrectArgs = ARROW + "Please specify a user you want to private message after \'/PM\'. \n";
-			return incorrectArgs;
+	private void privateMessage(Session s, String rest, int end, int at) {
+		String user = rest.substring(0, end);
+		if (end == rest.length()) {
+			sendPrivateMessage(s, user);
+		} else if (at < 0) {
+			sendPrivateMessage(s.username, user, rest.substring(end + 1) + "\n");
+		} else {
+			sendPrivateMessage(s, user, rest.substring(end + 1) + "\n", at);
 		}
+	}
 
-		String user = getRestOfCommand(cmd);
-		if (!socks.containsKey(user)) {
-			String notFound = ARROW + "User not found: " + user + " \n";
-			return notFound;
+	/**
+	* finds the node 'user' is on (-1 if they aren't on any) from the node that owns their name,
+	* then runs 'then' with it - holding the rest of 's''s input until then
+	**/
+	private void locate(Session s, String user, IntConsumer then) {
+		int owner = cluster.owner(user);
+		if (owner == cluster.node) {
+			then.accept(cluster.whereIs(user));
+			return;
 		}
-
-		sendPrivateMessage(username, user);
-		return "";
+		s.await();
+		cluster.ask(owner, Cluster.LOOKUP, user, null, null, reply -> s.resume(() -> then.accept(reply.number)));
 	}
 
 	/**
 	* sends a PM to the last person user sent/recieved a PM to
 	**/
-	private String replyPM(String[] cmd, String username, OutputStream out) {
-		lockReplies.lock();
-		if (!replyTo.containsKey(username)) {
+	private String replyPM(String line, int arg, String username) {
+		String sendTo = replies.get(username);
+		if (sendTo == null) {
 			String noReply = ARROW + "You haven't been private messaging anyone! \n";
 			noReply += ARROW + "This command PMs the last person you PM or the last perso that PM'd you. \n";
-			lockReplies.unlock();
-			return noReply;					
+			return noReply;
 		}
-		lockReplies.unlock();
-		if (cmd.length < 2) {					
-			String incorrectArgs = ARROW + "Please specify a message you want to pass on to " + replyTo + " \n";
+		String pm = getRestOfCommand(line, arg);
+		if (pm.isEmpty()) {
+			String incorrectArgs = ARROW + "Please specify a message you want to pass on to " + sendTo + " \n";
 			return incorrectArgs;
 		}
-		lockReplies.lock();
-		String sendTo = replyTo.get(username);
-		lockReplies.unlock();
-		String pm = getRestOfCommand(cmd) + "\n";
+		pm += "\n";
 		sendPrivateMessage(username, sendTo, pm);
-		return "";
+		return null;
 	}
 
 	/**
-	* removes specified user completely from the replyTo hashmap
+	* removes specified user completely from replies
 	*/
 	private void removeFromReplies(String username) {
-		lockReplies.lock();
-		Socket sock = new Socket();
-		String keyFound = "";
-		String inform = "";
-		if (replyTo.containsKey(username)) {
-			replyTo.remove(username);
-		}
-		if (replyTo.containsValue(username)) {
-			for (String key: replyTo.keySet()) {
-				if (replyTo.get(key).equals(username)) {
-					// let 'key' know that username logged off and that they won't be able to use /replyPM
-					inform = "***" + username + " has logged off. \n" + ARROW + "You now need to send/recieve a PM to use /replyPM. \n" + ARROW;
-					sock = socks.get(key);
-					keyFound = key;
-					replyTo.remove(key);
-					break;
-				}
+		// let everyone who'd reply to them know that username logged off and that they won't be able to use /replyPM
+		String inform = "***" + username + " has logged off. \n" + ARROW + "You now need to send/recieve a PM to use /replyPM. \n" + ARROW;
+		for (String other : replies.remove(username)) {
+			Session s = socks.get(other);
+			if (s == null) {
+				continue;
 			}
-		}
-		lockReplies.unlock();
-
-		if (!keyFound.equals("")) {
 			try {
-				sock.getOutputStream().write(inform.getBytes());
+				s.write(inform);
 			} catch (IOException e) {
-				System.err.println("Informing " + keyFound + " that " + username + " logged off failed");
-			}			
+				Log.warn("pm_failed", other, null, "informing them that " + username + " logged off failed", e);
+			}
 		}
 	}
 
 	/**
-	* Sends a private from 'user1' to 'user2'
+	* asks 'user1' for the message they want to send to 'user2'
+	* their next line of input is the message
 	**/
-	private void sendPrivateMessage(String user1, String user2) {
-		byte[] data = new byte[2000];
-		int len = 0;
-		
-		lockSocks.lock();
-		Socket sock1 = socks.get(user1);
-		Socket sock2 = socks.get(user2);
-		lockSocks.unlock();
-
+	private void sendPrivateMessage(Session s, String user2) {
 		String request = ARROW + "Please enter the message you want to send: \n";
 		request += ARROW;
 		try {
-			sock1.getOutputStream().write(request.getBytes());
-			if ((len = sock1.getInputStream().read(data)) != -1) {
-				String message = new String(data, 0, len);
-				sendPrivateMessage(user1, user2, message);
-			} else { // user1 left
-				removeFromSocks(user1);
-				removeFromReplies(user1);
-			}			
+			s.write(request);
 		} catch (IOException e) {
-			System.err.println("Error getting " + user1 + "'s private message");
+			Log.warn("pm_failed", s.username, null, "error asking for their private message", e);
 		}
+		s.pmTarget = user2;
+		s.pmReturn = s.state;
+		s.state = State.PM_BODY;
 	}
 
 	/**
-	* Sends a private from 'user1' to 'user2' with message 'message'
+	* Sends a private from 'user1' to 'user2' with message 'message', then gives 'user1' a fresh prompt
 	**/
 	private void sendPrivateMessage(String user1, String user2, String message) {
-		lockReplies.lock();
-		replyTo.put(user1, user2);
-		replyTo.put(user2, user1);
-		lockReplies.unlock();		
-
-		lockSocks.lock();
-		Socket sock1 = socks.get(user1);
-		Socket sock2 = socks.get(user2);
-		lockSocks.unlock();		
-
-		String sentMsg = "***PM from " + user1 + ": " + message + ARROW;
-		String confirmMsg = ARROW + "***PM sent to " + user2 + ": " + message;
+		Session s1 = socks.get(user1);
+		Session s2 = socks.get(user2);
+
+		if (s2 == null && cluster != null) { // on another node, if they're anywhere
+			locate(s1, user2, at -> sendPrivateMessage(s1, user2, message, at));
+			return;
+		}
+		if (s2 == null) { // they left while the message was being typed
+			tell(s1, ARROW + "User not found: " + user2 + " \n");
+			return;
+		}
+
+		replies.set(user1, user2);
+		replies.set(user2, user1);
+		renamedMeanwhile(user2, s2);
+		if (journal != null) {
+			journal.pm(user1, user2, message);
+		}
+
+		// each side gets one send, queued on their own connection
+		SharedBuffer sentMsg = SharedBuffer.encode("***PM from " + user1 + ": " + message + ARROW);
+		SharedBuffer confirmMsg = SharedBuffer.encode(ARROW + "***PM sent to " + user2 + ": " + message);
+		try {
+			s2.conn.send(sentMsg, null, null);
+			s1.conn.send(confirmMsg, PROMPT, null);
+		} catch (IOException e) {
+			Log.warn("pm_failed", user1, null, "private message to " + user2 + " failed", e);
+		} finally {
+			sentMsg.release();
+			confirmMsg.release();
+		}
+	}
+
+	/**
+	* sends a private message on to node 'at', where 'user2' is - or says they aren't anywhere if it's -1
+	**/
+	private void sendPrivateMessage(Session s1, String user2, String message, int at) {
+		if (at < 0) {
+			tell(s1, ARROW + "User not found: " + user2 + " \n");
+			return;
+		}
+
+		replies.set(s1.username, user2);
+		if (journal != null) {
+			journal.pm(s1.username, user2, message);
+		}
+		cluster.send(at, Cluster.PM, 0, s1.username, user2, message);
+		tell(s1, ARROW + "***PM sent to " + user2 + ": " + message);
+	}
+
+	/**
+	* a private message from 'user1' on node 'from' to 'user2', who's on this one
+	**/
+	private void receivePrivateMessage(String user1, String user2, String message, int from) {
+		Session s2 = socks.get(user2);
+		if (s2 == null) { // gone since they were looked up
+			cluster.send(from, Cluster.NOTICE, 0, user1, null, ARROW + "User not found: " + user2 + " \n" + ARROW);
+			return;
+		}
+
+		replies.set(user2, user1);
+		renamedMeanwhile(user2, s2);
 		try {
-			sock1.getOutputStream().write(confirmMsg.getBytes());
-			sock2.getOutputStream().write(sentMsg.getBytes());
+			s2.write("***PM from " + user1 + ": " + message + ARROW);
 		} catch (IOException e) {
-			System.err.println("Private message sending failed from " + user1 + " to " + user2);
+			Log.warn("pm_failed", user2, null, "private message from " + user1 + " failed", e);
 		}
 	}
 
 	/**
 	* removes user from all lists before disconnecting
-	*/	
-	private void quit(String username, OutputStream out) {
+	*/
+	private void quit(Session s) {
 		String bye = ARROW + "Bye!\n";
 		try {
-			out.write(bye.getBytes());
+			s.write(bye);
 		} catch (IOException e) {
-			System.err.println("Problem saying bye to user " + username);
+			Log.warn("bye_failed", s.username, null, "problem saying bye", e);
 		}
 
-		removeFromReplies(username);
-		removeFromSocks(username);
-	}	
+		removeFromReplies(s.username);
+		removeFromSocks(s.username);
+		s.close();
+	}
 
 	/**
 	* removes specified user from the socks hashmap and then closes their socket
 	*/
 	private void removeFromSocks(String username) {
-		lockSocks.lock();
-		Socket sock = socks.get(username);
-		socks.remove(username);
-		lockSocks.unlock();
-		try {
-			sock.close();
-		} catch (IOException e) {
-			System.err.println("Error closing " + username + "'s socket");
+		Session s = socks.remove(username);
+		if (s != null) {
+			userIndex.remove(username, s);
+			userList.changed();
+			release(username);
+			s.close();
 		}
-		return;		
+		return;
 	}
 
 	/**
 	* handles looping message sending for each client
 	* starts with asking user for their name
 	**/
-	public void handle_client(Socket sock) {
-		InputStream in = null;
-		OutputStream out = null;
-		try {
-			in = sock.getInputStream();
-			out = sock.getOutputStream();
-		} catch (IOException e) {
-			System.err.println("Error: message sending failed.");
-			return;
-		}
+	public void handle_client(SocketChannel channel) {
+		Session s = newSession(new BlockingConnection(channel, writers));
 
+		byte[] data = new byte[2000];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int len = 0;
 		try {
-			String username = getUsername(in, out, sock);
-			// lets the user join or create chatrooms
-			// or see a menu with command options or quit
-			commands(username, in, out, sock);		
+			while (!s.isClosed() && (len = channel.read(buf)) != -1) {
+				s.onData(data, 0, len);
+				buf.clear();
+			}
 		} catch (IOException e) {
-			System.err.println("Error getting new user's name");
+			if (!s.isClosed()) {
+				Log.warn("read_failed", s.username, null, "error reading from client", e);
+			}
+		}
+		if (!s.isClosed()) { // user left - take them off the all lists
+			s.onClose();
 		}
 	}
 
-	public static void main(String[] arg) { 
+	public static void main(String[] arg) {
 		if (arg.length > 1) {
 			System.err.println("You only have to pass in the port number.");
 			System.exit(-1);
@@ -800,16 +1767,479 @@ public class ChatServer {
 			}
 		}
 
-		ChatServer myServer = new ChatServer(port);
+		if (Cluster.NODES > 1) { // the whole cluster in this process, on consecutive ports
+			MessageBus bus = new LoopbackBus(Cluster.NODES);
+			for (int i = 1; i < Cluster.NODES; i++) {
+				int node = i;
+				int nodePort = port + i;
+				new Thread(() -> new ChatServer(nodePort, new Cluster(node, bus)), "node-" + i).start();
+			}
+			ChatServer myServer = new ChatServer(port, new Cluster(0, bus));
+		} else {
+			ChatServer myServer = new ChatServer(port);
+		}
+	}
+
+	// stands in for a line when the connection goes away, so cleanup waits its turn behind their input
+	private static final String HANGUP = new String("hangup");
+	// stands in for a line that was too long, so the complaint comes out in the right place
+	private static final String TOO_LONG = new String("too long");
+
+	/**
+	* one connected client
+	* input is fed in as it arrives and handled a line at a time depending on the state they're in
+	* lines go through an inbox that's drained by one thread at a time - their own io thread while
+	* they're in the lobby, their room's loop while they're in a room - so they're always handled
+	* in order, and everything that touches a room happens on its loop
+	**/
+	class Session implements IdleReaper.Tracked, LineDecoder.Listener {
+		final int id; // in sessions, for as long as they're connected
+		Connection conn;
+		volatile String username = "";
+		SharedBuffer prefix; // "username: " ready to go in front of their chat lines
+		volatile State state = State.LOGIN;
+		Room room; // chatroom they're in, if any
+		volatile RoomLoop loop; // loop their input is handled on, null when it's their own thread
+		String pmTarget; // who their next line goes to while in PM_BODY
+		State pmReturn; // where they go back to once the PM is sent
+		private LineDecoder decoder = new LineDecoder(LineDecoder.MAX_LINE); // input that hasn't hit a newline yet
+		private ConcurrentLinkedQueue<String> inbox = new ConcurrentLinkedQueue<String>(); // lines waiting to be handled
+		private AtomicBoolean draining = new AtomicBoolean(); // some thread is (or is about to be) draining the inbox
+		private volatile boolean waiting; // on another node - lines stay in the inbox until it answers
+		private volatile Runnable resumed; // what to do with the answer, first thing once they're let go
+		private boolean hungUp; // onClose() has been called or they were cut off, only the io thread looks at it
+		private volatile long lastActive = System.nanoTime(); // when they last sent anything
+		// their rate limits, null for none - only their io thread takes from them
+		private TokenBucket lineLimit = (Limits.USER_LINES == null) ? null : Limits.USER_LINES.bucket();
+		private TokenBucket byteLimit = (Limits.USER_BYTES == null) ? null : Limits.USER_BYTES.bucket();
+		private AtomicInteger delayed = new AtomicInteger(); // lines held back by the limit, later ones wait behind them
+		private boolean warned; // told them they're going too fast, until a line gets through
+
+		Session(Connection conn) {
+			this.conn = conn;
+			this.id = sessions.add(this);
+		}
+
+		void setUsername(String name) {
+			username = name;
+			prefix = SharedBuffer.constant(name + ": ");
+		}
+
+		void write(String message) throws IOException {
+			SharedBuffer m = SharedBuffer.encode(message);
+			try {
+				conn.send(m, null, null);
+			} finally {
+				m.release();
+			}
+		}
+
+		void write(SharedBuffer message) throws IOException {
+			conn.send(message, null, null);
+		}
+
+		public boolean isClosed() {
+			return state == State.CLOSED;
+		}
+
+		/**
+		* none of their lines are waiting, being handled or waiting on another node
+		**/
+		boolean settled() {
+			return inbox.isEmpty() && !draining.get() && !waiting;
+		}
+
+		public long lastActive() {
+			return lastActive;
+		}
+
+		/**
+		* a telnet NOP - telnet shows nothing, but a dead connection fails the write
+		**/
+		public void probe() {
+			try {
+				conn.send(IAC_NOP, null, null);
+			} catch (IOException e) {
+				// onClose() will follow from the reading side
+			}
+		}
+
+		/**
+		* timed out - says bye and goes through the same cleanup as losing the connection
+		**/
+		public void evict() {
+			try {
+				write(ARROW + "Disconnected for being idle. Bye!\n");
+			} catch (IOException e) {
+				Log.warn("bye_failed", username, null, "problem saying bye to idle user", e);
+			}
+			submit(HANGUP);
+		}
+
+		/**
+		* takes whatever was read off the connection and handles each complete line
+		**/
+		void onData(byte[] data, int off, int len) {
+			lastActive = System.nanoTime();
+			if (Metrics.ON) {
+				Metrics.bytesIn.add(len);
+			}
+			if (!isClosed()) {
+				decoder.decode(data, off, len, this);
+			}
+		}
+
+		public void line(String line, int bytes) {
+			if (Metrics.ON) {
+				Metrics.linesIn.increment();
+			}
+			if (hungUp) {
+				return;
+			} else if (lineLimit == null && byteLimit == null) {
+				submit(line);
+			} else {
+				limit(line, bytes);
+			}
+		}
+
+		/**
+		* a line that didn't come through the decoder - the benchmarks type these
+		**/
+		void line(String line) {
+			line(line, line.getBytes(StandardCharsets.UTF_8).length);
+		}
+
+		/**
+		* lets 'line' through if it's within their limits, otherwise does what chat.limitAction says
+		* it's charged the 'bytes' it took to send, not its length in chars
+		**/
+		private void limit(String line, long len) {
+			long wait = Math.max((lineLimit == null) ? 0 : lineLimit.delayFor(1), (byteLimit == null) ? 0 : byteLimit.delayFor(len));
+			if (wait == 0 || (Limits.ACTION == Limits.Action.DELAY && wait <= Limits.MAX_DELAY)) {
+				if (lineLimit != null) {
+					lineLimit.take(1);
+				}
+				if (byteLimit != null) {
+					byteLimit.take(len);
+				}
+				warned = false;
+				if (wait == 0 && delayed.get() == 0) {
+					submit(line);
+				} else { // behind the ones already waiting
+					delayed.incrementAndGet();
+					Limits.later(() -> {
+						delayed.decrementAndGet();
+						submit(line);
+					}, wait);
+				}
+				return;
+			}
+
+			if (Limits.ACTION == Limits.Action.DISCONNECT) {
+				hungUp = true; // nothing more from them
+				try {
+					write(ARROW + "Disconnected for sending too fast. Bye!\n");
+				} catch (IOException e) {
+					Log.warn("bye_failed", username, null, "problem saying bye for sending too fast", e);
+				}
+				submit(HANGUP);
+			} else if (!warned) {
+				warned = true;
+				try {
+					write(ARROW + "You're sending too fast, so that was ignored - slow down a little. \n" + ARROW);
+				} catch (IOException e) {
+					Log.warn("limit_notice_failed", username, null, "problem telling them they're sending too fast", e);
+				}
+			}
+		}
+
+		public void overlong() {
+			submit(TOO_LONG);
+		}
+
+		private void submit(String line) {
+			inbox.offer(line);
+			kick();
+		}
+
+		/**
+		* holds the rest of their input back until resume() - only while handling one of their lines
+		**/
+		void await() {
+			waiting = true;
+		}
+
+		/**
+		* carries on with their input, running 'then' first on whichever thread handles it
+		**/
+		void resume(Runnable then) {
+			resumed = then;
+			waiting = false;
+			kick();
+		}
+
+		private void kick() {
+			if (draining.compareAndSet(false, true)) {
+				RoomLoop l = loop;
+				if (l == null || l.inLoop()) {
+					drain();
+				} else {
+					l.execute(this::drain);
+				}
+			}
+		}
+
+		/**
+		* handles everything in the inbox
+		* if a line moves them onto a different loop the rest are handed over to it
+		**/
+		private void drain() {
+			while (true) {
+				Runnable r = resumed;
+				if (r != null) {
+					resumed = null;
+					r.run();
+				}
+				String line;
+				while (!waiting && (line = inbox.poll()) != null) {
+					if (line == HANGUP) {
+						hangup();
+					} else if (line == TOO_LONG) {
+						tooLong();
+					} else if (!isClosed()) {
+						onLine(line);
+					}
+					RoomLoop l = loop;
+					if (l != null && !l.inLoop()) {
+						l.execute(this::drain);
+						return;
+					}
+				}
+				draining.set(false);
+				// something may have come in (or been answered) after the last poll while we still looked busy
+				if (((inbox.isEmpty() || waiting) && resumed == null) || !draining.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+
+		private void onLine(String line) {
+			switch (state) {
+				case LOGIN:
+					getUsername(this, line);
+					break;
+				case LOBBY:
+					commands(this, line);
+					break;
+				case ROOM:
+					chat(this, line);
+					break;
+				case PM_BODY:
+					state = pmReturn;
+					sendPrivateMessage(username, pmTarget, line + "\n");
+					break;
+				default:
+					break;
+			}
+		}
+
+		/**
+		* the connection went away - cleanup is queued behind whatever they'd already sent
+		**/
+		void onClose() {
+			if (!hungUp) {
+				hungUp = true;
+				submit(HANGUP);
+			}
+		}
+
+		private void tooLong() {
+			if (isClosed()) {
+				return;
+			}
+			try {
+				write(ARROW + "That line was too long (over " + LineDecoder.MAX_LINE + " bytes), so it was ignored.\n");
+				write(PROMPT);
+			} catch (IOException e) {
+				Log.warn("too_long_notice_failed", username, null, "problem telling them their line was too long", e);
+			}
+		}
+
+		/**
+		* the connection went away without a /quit - take them off all the lists
+		**/
+		private void hangup() {
+			if (isClosed()) {
+				return;
+			}
+			State where = (state == State.PM_BODY) ? pmReturn : state;
+			if (where == State.ROOM) {
+				leaveRoom(this, ARROW + "* user has left chat: " + username);
+			}
+			if (where != State.LOGIN && where != State.CLOSED) {
+				removeFromReplies(username);
+				removeFromSocks(username);
+			}
+			close();
+		}
+
+		void close() {
+			if (state != State.CLOSED) {
+				if (Metrics.ON) {
+					Metrics.connectionsClosed.increment();
+				}
+				sessions.remove(id); // they've left their room by now, so nobody's looking for them
+			}
+			state = State.CLOSED;
+			try {
+				conn.close();
+			} catch (IOException e) {
+				Log.warn("close_failed", username, null, "error closing their socket", e);
+			}
+		}
+	}
+
+	/**
+	* output for a client in thread-per-connection mode
+	* messages wait in a bounded queue and a writer task drains it with gathering writes, so whoever
+	* sends to this client never blocks on their socket - the writer only exists while there's a backlog
+	**/
+	static class BlockingConnection implements Connection {
+		private SocketChannel channel;
+		private Executor writers;
+		private OutboundQueue queue;
+		private ByteBuffer[] gather; // views of queued parts for one gathering write, only the writer uses it
+		private Lock lock;
+		private boolean draining; // a writer task is running
+		private boolean closing; // close once the queue is drained
+		private boolean dropped; // disconnected for falling behind - don't wait on them
+
+		BlockingConnection(SocketChannel channel, Executor writers) {
+			this.channel = channel;
+			this.writers = writers;
+			this.queue = new OutboundQueue();
+			this.gather = new ByteBuffer[16];
+			this.lock = new ReentrantLock();
+			this.draining = false;
+			this.closing = false;
+			this.dropped = false;
+		}
+
+		public void send(SharedBuffer a, SharedBuffer b, SharedBuffer c) throws IOException {
+			boolean startWriter = false;
+			lock.lock();
+			try {
+				if (closing || !channel.isOpen()) {
+					throw new IOException("Socket closed");
+				}
+				if (!queue.offer(a, b, c)) {
+					disconnect();
+				} else if (!draining) {
+					draining = true;
+					startWriter = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (startWriter) {
+				writers.execute(this::drain);
+			}
+		}
+
+		/**
+		* writes out everything queued, then stops
+		* writer threads come and go, so the view slot this one took is given back afterwards
+		**/
+		private void drain() {
+			try {
+				writeQueued();
+			} finally {
+				SharedBuffer.releaseSlot();
+			}
+		}
+
+		private void writeQueued() {
+			while (true) {
+				lock.lock();
+				int n = queue.gather(gather);
+				if (n == 0) {
+					draining = false;
+					if (closing) {
+						closeNow();
+					}
+					lock.unlock();
+					return;
+				}
+				lock.unlock();
+
+				long written = 0;
+				try {
+					written = channel.write(gather, 0, n);
+				} catch (IOException e) {
+					if (Metrics.ON) {
+						Metrics.writeFailures.increment();
+					}
+					lock.lock();
+					queue.advance(0);
+					queue.clear();
+					draining = false;
+					dropped = true; // nothing more is getting through, so close() needn't wait on them
+					if (closing) { // close() left it to us
+						closeNow();
+					}
+					lock.unlock();
+					return;
+				}
+
+				lock.lock();
+				queue.advance(written);
+				lock.unlock();
+			}
+		}
+
+		/**
+		* gives up on a client that can't keep up
+		* shutting the input makes their read loop see them leave, which cleans up after them as usual
+		**/
+		private void disconnect() {
+			queue.clear();
+			dropped = true;
+			try {
+				channel.shutdownInput();
+			} catch (IOException e) {
+				closeNow();
+			}
+		}
+
+		public void close() throws IOException {
+			lock.lock();
+			try {
+				closing = true;
+				if (!draining || dropped) {
+					closeNow();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void closeNow() {
+			queue.clear();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.warn("close_failed", null, null, "error closing connection", e);
+			}
+		}
 	}
 
 	/**
 	* thread for each socket
 	**/
 	public class requestHandler implements Runnable {
-		Socket socket;
+		SocketChannel socket;
 
-		public requestHandler(Socket socket) {
+		public requestHandler(SocketChannel socket) {
 			this.socket = socket;
 		}
 
@@ -820,4 +2250,4 @@ public class ChatServer {
 			handle_client(socket);
 		}
 	}
-}
\ No newline at end of file
+}
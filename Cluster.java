@@ -0,0 +1,141 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+* this server's place in a cluster of chat.nodes servers, which share rooms and usernames over a MessageBus
+* every username and room has an owner node, picked from its name by consistent hashing:
+* - a username's owner keeps the one record of which node it's logged in on, so claiming a name is
+*   atomic cluster-wide, and a PM finds its way by asking the owner where the recipient is
+* - a room's owner decides whether it can be deleted, but every node keeps a copy of every room (for
+*   its own members, its history and the /rooms list), and hears about everything said in it elsewhere
+* a node only ever sends its own members' chat lines, so the rest of a room hears them in the order
+* they were said on that node, though lines from different nodes can interleave differently on each
+**/
+public class Cluster implements MessageBus.Listener {
+	public static final int NODES = Math.max(1, Integer.getInteger("chat.nodes", 1));
+
+	// message types - 'to everyone' ones are published, the rest go to one node
+	static final int ROOM = 1; // 'a' exists and keeps 'number' lines of history - to everyone
+	static final int DELETE_ROOM = 2; // 'b' wants room 'a' deleted - to its owner, which replies with what to tell them
+	static final int ROOM_DELETED = 3; // 'a' is gone - to everyone
+	static final int ENTERED = 4; // 'b' came into room 'a' on the sender - to everyone
+	static final int LEFT = 5; // 'b' left room 'a', and 'c' says so - to everyone
+	static final int CHAT = 6; // 'b' said 'c' in room 'a' on the sender - to everyone
+	static final int CLAIM = 7; // the sender wants username 'a' - to its owner, which replies 'number' 1 if they got it
+	static final int RELEASE = 8; // the sender's done with username 'a' - to its owner
+	static final int LOOKUP = 9; // where's 'a' logged in - to its owner, which replies with the node or -1
+	static final int PM = 10; // 'a' sends 'b' the private message 'c' - to the node 'b' is on
+	static final int NOTICE = 11; // tell user 'a' 'c' - to the node they're on
+	static final int REPLY = 12; // the answer to 'request'
+	static final int LONGEST = 13; // someone's claiming a username 'number' long - to everyone, so /PM knows where names can end
+
+	final int node;
+	private final MessageBus bus;
+	private final HashRing ring; // who owns what
+	private MessageBus.Listener server; // gets everything but the directory's own messages and replies
+	private final ConcurrentHashMap<String, Integer> claims; // usernames this node owns, to the node each is on
+	private final ConcurrentHashMap<Integer, Consumer<MessageBus.Message>> awaiting; // requests, by number
+	private final AtomicInteger nextRequest;
+
+	public Cluster(int node, MessageBus bus) {
+		this.node = node;
+		this.bus = bus;
+		this.ring = HashRing.of(bus.nodes());
+		this.claims = new ConcurrentHashMap<String, Integer>();
+		this.awaiting = new ConcurrentHashMap<Integer, Consumer<MessageBus.Message>>();
+		this.nextRequest = new AtomicInteger();
+	}
+
+	/**
+	* starts taking messages, handing the server's ones to 'server'
+	**/
+	public void start(MessageBus.Listener server) {
+		this.server = server;
+		bus.register(node, this);
+	}
+
+	/**
+	* the node that owns the username or room called 'name'
+	**/
+	public int owner(String name) {
+		return ring.owner(name);
+	}
+
+	public boolean owns(String name) {
+		return owner(name) == node;
+	}
+
+	/**
+	* takes 'name' for someone on 'holder', if nobody has it - only on its owner
+	**/
+	public boolean claim(String name, int holder) {
+		return claims.putIfAbsent(name, holder) == null;
+	}
+
+	/**
+	* gives 'name' up from here, wherever it's owned
+	**/
+	public void release(String name) {
+		if (owns(name)) {
+			claims.remove(name, node);
+		} else {
+			send(owner(name), RELEASE, 0, name, null, null);
+		}
+	}
+
+	public void publish(int type, int number, String a, String b, String c) {
+		bus.publish(new MessageBus.Message(type, node, 0, number, a, b, c));
+	}
+
+	public void send(int to, int type, int number, String a, String b, String c) {
+		bus.send(to, new MessageBus.Message(type, node, 0, number, a, b, c));
+	}
+
+	/**
+	* sends a request to 'to', and runs 'then' with its reply on the bus's thread
+	**/
+	public void ask(int to, int type, String a, String b, String c, Consumer<MessageBus.Message> then) {
+		int request = nextRequest.incrementAndGet();
+		if (request == 0) { // wrapped round - 0 means no request
+			request = nextRequest.incrementAndGet();
+		}
+		awaiting.put(request, then);
+		bus.send(to, new MessageBus.Message(type, node, request, 0, a, b, c));
+	}
+
+	public void reply(MessageBus.Message to, int number, String c) {
+		bus.send(to.from, new MessageBus.Message(REPLY, node, to.request, number, null, null, c));
+	}
+
+	@Override
+	public void receive(MessageBus.Message m) {
+		switch (m.type) {
+			case REPLY:
+				Consumer<MessageBus.Message> then = awaiting.remove(m.request);
+				if (then != null) {
+					then.accept(m);
+				}
+				break;
+			case CLAIM:
+				reply(m, claim(m.a, m.from) ? 1 : 0, null);
+				break;
+			case RELEASE:
+				claims.remove(m.a, m.from);
+				break;
+			case LOOKUP:
+				reply(m, claims.getOrDefault(m.a, -1), null);
+				break;
+			default:
+				server.receive(m);
+				break;
+		}
+	}
+
+	/**
+	* where 'name' is logged in, or -1 - only on its owner
+	**/
+	public int whereIs(String name) {
+		return claims.getOrDefault(name, -1);
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+* the slash commands, shared by the lobby and the rooms
+* names are kept in a trie keyed on their characters, so a line is matched by walking its first word
+* once - no splitting and no string compares against every command
+* handlers are told where the argument starts in the line rather than being handed a split array
+**/
+public class CommandTable {
+	// where a command can be used
+	public static final int LOBBY = 0;
+	public static final int ROOM = 1;
+
+	/**
+	* runs a command
+	* returns what to tell the user before their next prompt, or null if it's seen to that itself
+	**/
+	public interface Handler {
+		String run(ChatServer.Session s, String line, int arg);
+	}
+
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] kids = new Node[0];
+		Handler[] handlers = new Handler[2]; // by LOBBY / ROOM, for the name ending here
+
+		Node kid(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return kids[i];
+				}
+			}
+			return null;
+		}
+
+		Node add(char c) {
+			Node n = kid(c);
+			if (n == null) {
+				n = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				kids = Arrays.copyOf(kids, kids.length + 1);
+				keys[keys.length - 1] = c;
+				kids[kids.length - 1] = n;
+			}
+			return n;
+		}
+	}
+
+	private Node root;
+
+	public CommandTable() {
+		this.root = new Node();
+	}
+
+	/**
+	* makes 'name' (e.g. "/join") run 'h' in 'where'
+	**/
+	public void register(String name, int where, Handler h) {
+		Node n = root;
+		for (int i = 0; i < name.length(); i++) {
+			n = n.add(name.charAt(i));
+		}
+		n.handlers[where] = h;
+	}
+
+	/**
+	* the handler for the command 'line' starts with, or null if it isn't one that works in 'where'
+	* the command is everything up to the first space
+	**/
+	public Handler find(String line, int where) {
+		Node n = root;
+		int len = line.length();
+		for (int i = 0; i < len; i++) {
+			char c = line.charAt(i);
+			if (c == ' ') {
+				break;
+			}
+			n = n.kid(c);
+			if (n == null) {
+				return null;
+			}
+		}
+		return n.handlers[where];
+	}
+
+	/**
+	* where the argument starts - just past the first space, or the end of the line if there's none
+	**/
+	public static int argStart(String line) {
+		int space = line.indexOf(' ');
+		return space < 0 ? line.length() : space + 1;
+	}
+}
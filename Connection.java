@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/**
+* where a session's output goes - a blocking or a non-blocking channel
+**/
+public interface Connection {
+	/**
+	* queues 'a' then 'b' then 'c' to go out back to back ('b' and 'c' can be null)
+	* each part is retained while it's queued, so the caller still releases its own reference
+	**/
+	void send(SharedBuffer a, SharedBuffer b, SharedBuffer c) throws IOException;
+
+	void close() throws IOException;
+}
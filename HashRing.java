@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+* consistent hashing - which node owns a name
+* each node is put on a ring of 32 bit hashes at chat.virtualNodes places, and a name belongs to the
+* first one at or after its own hash, so adding or taking away a node only moves the names between it
+* and its neighbours (about 1/n of them) rather than nearly all of them, as hash % n would
+* the ring is cut into 65536 slices, each knowing its first point, so a lookup starts right next to
+* the answer instead of binary searching every point
+**/
+public class HashRing {
+	public static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("chat.virtualNodes", 128));
+	private static final int SLICES = 1 << 16;
+
+	private final int[] nodes; // on the ring, in order
+	private final int virtualNodes;
+	private final int[] points; // hashes of every virtual node, unsigned and in order
+	private final int[] owners; // node at each point
+	private final int[] start; // index of the first point in each slice, or after it if it has none
+
+	public HashRing(int[] nodes, int virtualNodes) {
+		this.nodes = nodes.clone();
+		Arrays.sort(this.nodes);
+		this.virtualNodes = virtualNodes;
+
+		// hash and node packed together, so one sort puts them in order (and breaks any tie the same way)
+		// - the hash's top bit is flipped, so a signed sort comes out in unsigned order
+		long[] packed = new long[this.nodes.length * virtualNodes];
+		int n = 0;
+		for (int node : this.nodes) {
+			for (int v = 0; v < virtualNodes; v++) {
+				packed[n++] = ((long) (hash("node-" + node + "-" + v) ^ Integer.MIN_VALUE) << 32) | node;
+			}
+		}
+		Arrays.sort(packed);
+		this.points = new int[n];
+		this.owners = new int[n];
+		for (int i = 0; i < n; i++) {
+			points[i] = (int) (packed[i] >>> 32) ^ Integer.MIN_VALUE;
+			owners[i] = (int) packed[i];
+		}
+
+		this.start = new int[SLICES];
+		int i = 0;
+		for (int slice = 0; slice < SLICES; slice++) {
+			while (i < n && (points[i] >>> 16) < slice) {
+				i++;
+			}
+			start[slice] = i;
+		}
+	}
+
+	/**
+	* a ring of nodes 0 to 'count' - 1
+	**/
+	public static HashRing of(int count) {
+		int[] nodes = new int[count];
+		for (int i = 0; i < count; i++) {
+			nodes[i] = i;
+		}
+		return new HashRing(nodes, VIRTUAL_NODES);
+	}
+
+	public int owner(String name) {
+		if (points.length == 0) {
+			return -1;
+		}
+		int h = hash(name);
+		int i = start[h >>> 16];
+		while (i < points.length && Integer.compareUnsigned(points[i], h) < 0) {
+			i++;
+		}
+		return owners[(i == points.length) ? 0 : i]; // past the last point it wraps round to the first
+	}
+
+	/**
+	* the same ring with 'node' on it too
+	**/
+	public HashRing with(int node) {
+		int[] more = Arrays.copyOf(nodes, nodes.length + 1);
+		more[nodes.length] = node;
+		return new HashRing(more, virtualNodes);
+	}
+
+	/**
+	* the same ring without 'node'
+	**/
+	public HashRing without(int node) {
+		return new HashRing(Arrays.stream(nodes).filter(n -> n != node).toArray(), virtualNodes);
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	* String.hashCode() run through murmur3's finalizer, so similar names land far apart
+	**/
+	static int hash(String s) {
+		int h = s.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,217 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* the last few things said in a room, shown to whoever joins so they can see what they missed
+* lines are kept already encoded in a fixed ring of slots, oldest overwritten first, and a slot's bytes
+* are reused by the line that replaces it whenever they fit - a history belongs to its room's loop and is
+* only touched on that thread
+* what all the rooms keep together is capped - once it's over, the room that's been quiet the longest
+* loses its history (on its own loop), or if it's all one room's, that room loses its oldest lines
+**/
+public class History {
+	public static final int DEFAULT_LINES = Integer.getInteger("chat.history", 20);
+	public static final int MAX_LINES = Integer.getInteger("chat.historyMax", 500);
+	public static final long BUDGET = Long.getLong("chat.historyBytes", 8L * 1024 * 1024);
+	private static final byte[] ARROW = ">> ".getBytes(StandardCharsets.UTF_8);
+
+	// shared by every room
+	private static final AtomicLong used = new AtomicLong(); // bytes held by all histories
+	private static final Set<History> holding = ConcurrentHashMap.newKeySet(); // the ones with anything in them
+	private static final AtomicBoolean evicting = new AtomicBoolean(); // one eviction at a time
+
+	private final RoomLoop loop;
+	private byte[][] lines; // ring of encoded lines, oldest at 'head'
+	private int[] lengths; // how much of each slot is the line, the rest is spare from an older one
+	private int head;
+	private int count;
+	private int text; // bytes of the lines themselves
+	private long bytes; // bytes held, spare included - what counts against the budget
+	private volatile long lastUsed; // System.nanoTime() of the last line, for picking who to evict
+
+	History(RoomLoop loop) {
+		this.loop = loop;
+		this.lines = new byte[clamp(DEFAULT_LINES)][];
+		this.lengths = new int[lines.length];
+		this.head = 0;
+		this.count = 0;
+		this.text = 0;
+		this.bytes = 0;
+		this.lastUsed = System.nanoTime();
+	}
+
+	private static int clamp(int n) {
+		return Math.max(0, Math.min(n, MAX_LINES));
+	}
+
+	/**
+	* how many lines are kept
+	**/
+	public int size() {
+		return lines.length;
+	}
+
+	/**
+	* keeps "'prefix''message'" as the newest line, pushing out the oldest if it's full
+	**/
+	public void add(SharedBuffer prefix, SharedBuffer message) {
+		if (lines.length == 0) {
+			return;
+		}
+		int plen = prefix.length();
+		int mlen = message.length();
+		int len = ARROW.length + plen + mlen + 1;
+
+		int at;
+		if (count == lines.length) { // full - the oldest goes
+			at = head;
+			head = (head + 1) % lines.length;
+			text -= lengths[at];
+		} else {
+			at = (head + count) % lines.length;
+			count++;
+		}
+		byte[] line = lines[at];
+		if (line == null || line.length < len || line.length > 2 * len) { // don't hang on to a much bigger one
+			long was = (line == null) ? 0 : line.length;
+			line = new byte[len];
+			lines[at] = line;
+			account(len - was);
+		}
+		System.arraycopy(ARROW, 0, line, 0, ARROW.length);
+		prefix.view(0).get(line, ARROW.length, plen);
+		message.view(0).get(line, ARROW.length + plen, mlen);
+		line[len - 1] = '\n';
+		lengths[at] = len;
+		text += len;
+		lastUsed = System.nanoTime();
+
+		if (used.get() > BUDGET) {
+			evict(this);
+		}
+	}
+
+	/**
+	* everything kept, oldest first, as one message - null if there's nothing
+	**/
+	public SharedBuffer replay() {
+		if (count == 0) {
+			return null;
+		}
+		byte[] all = new byte[text];
+		int off = 0;
+		for (int i = 0; i < count; i++) {
+			int at = (head + i) % lines.length;
+			System.arraycopy(lines[at], 0, all, off, lengths[at]);
+			off += lengths[at];
+		}
+		return SharedBuffer.wrap(all);
+	}
+
+	/**
+	* keeps 'n' lines from now on, holding on to the newest of what's there
+	**/
+	public void resize(int n) {
+		n = clamp(n);
+		byte[][] newLines = new byte[n][];
+		int[] newLengths = new int[n];
+		int keep = Math.min(count, n);
+		int drop = count - keep; // worked out once - dropOldest() counts 'count' down as it goes
+		for (int i = 0; i < drop; i++) { // the oldest ones don't fit any more
+			dropOldest();
+		}
+		// what's left is the newest 'keep', oldest of them at 'head'
+		int kept = 0;
+		for (int i = 0; i < keep; i++) {
+			int at = (head + i) % lines.length;
+			newLines[i] = lines[at];
+			newLengths[i] = lengths[at];
+			kept += lengths[at];
+		}
+		lines = newLines;
+		lengths = newLengths;
+		head = 0;
+		count = keep;
+		text = kept;
+	}
+
+	/**
+	* forgets everything, e.g. when the room goes
+	**/
+	public void clear() {
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = null;
+		}
+		head = 0;
+		count = 0;
+		text = 0;
+		account(-bytes);
+	}
+
+	private void dropOldest() {
+		text -= lengths[head];
+		account(-lines[head].length);
+		lines[head] = null;
+		head = (head + 1) % lines.length;
+		count--;
+	}
+
+	/**
+	* counts 'delta' more bytes against this room and the budget
+	**/
+	private void account(long delta) {
+		if (delta == 0) {
+			return;
+		}
+		boolean was = bytes > 0;
+		bytes += delta;
+		used.addAndGet(delta);
+		if (!was && bytes > 0) {
+			holding.add(this);
+		} else if (was && bytes == 0) {
+			holding.remove(this);
+		}
+	}
+
+	/**
+	* gets the budget back under by emptying the history that's gone longest without a line
+	* 'current' is the one whose loop we're on, or null
+	**/
+	private static void evict(History current) {
+		if (!evicting.compareAndSet(false, true)) {
+			return; // someone's already on it
+		}
+		History victim = null;
+		for (History h : holding) {
+			if (victim == null || h.lastUsed - victim.lastUsed < 0) {
+				victim = h;
+			}
+		}
+		if (victim == null || victim == current) { // nobody else to take it from
+			if (current != null) {
+				while (used.get() > BUDGET && current.count > 0) {
+					current.dropOldest();
+				}
+			}
+			evicting.set(false);
+			return;
+		}
+
+		History v = victim;
+		Runnable clear = () -> {
+			v.clear();
+			evicting.set(false);
+			if (used.get() > BUDGET) {
+				evict(null);
+			}
+		};
+		if (v.loop.inLoop()) {
+			clear.run();
+		} else {
+			v.loop.execute(clear);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+* disconnects clients that haven't sent anything for a while, and optionally pokes quiet ones so a
+* dead terminal shows up as a failed write sooner
+* sessions only note the time when they read something - it's this thread's job to look at that, using
+* a hashed timing wheel: each session sits in the slot for the tick it's next due to be looked at, and a
+* tick only touches that one slot, so there's no timer per session and no scan over everyone
+* anyone still active when their slot comes round is just moved to the slot for their new deadline
+**/
+public class IdleReaper implements Runnable {
+	private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+	private static final int SLOTS = 512; // one lap of the wheel is 512 ticks, later deadlines go round again
+
+	/**
+	* what the reaper needs from a session
+	**/
+	public interface Tracked {
+		long lastActive(); // System.nanoTime() of the last read
+		boolean isClosed();
+		void probe(); // keepalive that the client won't see
+		void evict(); // same cleanup as /quit
+	}
+
+	private static class Entry {
+		Tracked t;
+		long nextProbe; // when they can be probed again
+		Entry next;
+	}
+
+	private long timeout; // nanos of silence before eviction
+	private long keepalive; // nanos of silence before a probe, 0 for none
+	private Entry[] wheel;
+	private long tick; // last tick that's been looked at
+	private ConcurrentLinkedQueue<Entry> added; // new sessions, put in the wheel by the reaper thread
+
+	public IdleReaper(long timeout, long keepalive, TimeUnit unit) {
+		this.timeout = unit.toNanos(timeout);
+		this.keepalive = unit.toNanos(keepalive);
+		this.wheel = new Entry[SLOTS];
+		this.tick = Math.floorDiv(System.nanoTime(), TICK);
+		this.added = new ConcurrentLinkedQueue<Entry>();
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "idle-reaper");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	* starts watching 't', from any thread
+	**/
+	public void track(Tracked t) {
+		Entry e = new Entry();
+		e.t = t;
+		e.nextProbe = System.nanoTime();
+		added.add(e);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TICK));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			Entry e;
+			while ((e = added.poll()) != null) {
+				schedule(e);
+			}
+			// catch up on every tick since the last, in case we slept long
+			long current = Math.floorDiv(now, TICK);
+			while (tick < current) {
+				tick++;
+				expire((int) (tick & (SLOTS - 1)), now);
+			}
+		}
+	}
+
+	private void expire(int slot, long now) {
+		Entry e = wheel[slot];
+		wheel[slot] = null;
+		while (e != null) {
+			Entry next = e.next;
+			e.next = null;
+			try {
+				check(e, now);
+			} catch (RuntimeException x) {
+				Log.error("idle_check_failed", null, null, "error checking an idle client", x);
+			}
+			e = next;
+		}
+	}
+
+	/**
+	* evicts, probes or just reschedules 'e'
+	**/
+	private void check(Entry e, long now) {
+		Tracked t = e.t;
+		if (t.isClosed()) {
+			return; // forget about them
+		}
+		long last = t.lastActive();
+		if (now - last >= timeout) {
+			t.evict();
+			return;
+		}
+		if (keepalive > 0 && now - last >= keepalive && now - e.nextProbe >= 0) {
+			t.probe();
+			e.nextProbe = now + keepalive;
+		}
+		schedule(e);
+	}
+
+	/**
+	* puts 'e' in the slot for when it next needs looking at
+	**/
+	private void schedule(Entry e) {
+		long last = e.t.lastActive();
+		long due = last + timeout;
+		if (keepalive > 0) {
+			long probe = (e.nextProbe - (last + keepalive) > 0) ? e.nextProbe : last + keepalive;
+			if (probe - due < 0) {
+				due = probe;
+			}
+		}
+		long at = Math.max(Math.floorDiv(due, TICK) + 1, tick + 1); // round up, never into a slot that's already gone past
+		int slot = (int) (at & (SLOTS - 1));
+		e.next = wheel[slot];
+		wheel[slot] = e;
+	}
+}
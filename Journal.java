@@ -0,0 +1,365 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+* an optional write-ahead log of rooms and messages, so they come back after a restart
+* records go into fixed size segment files that are memory mapped, so appending one is a copy into
+* the page cache rather than a syscall - a sync thread flushes whatever's new to disk every so often
+* (group commit), so a crash of the server loses nothing and a crash of the machine loses that much
+* every segment starts with a checkpoint of the rooms there are, so old segments can be deleted once
+* they're too old or there are too many of them without losing any rooms
+**/
+public class Journal implements Runnable {
+	public static final String DIR = System.getProperty("chat.journal", ""); // empty for no journal
+	private static final int SEGMENT = Integer.getInteger("chat.journalSegment", 16 * 1024 * 1024);
+	private static final int SYNC_MS = Integer.getInteger("chat.journalSync", 200);
+	private static final long MAX_BYTES = Long.getLong("chat.journalMaxBytes", 256L * 1024 * 1024);
+	private static final long MAX_AGE = TimeUnit.HOURS.toMillis(Long.getLong("chat.journalMaxAge", 0)); // 0 keeps them however old
+
+	private static final int MAGIC = 0x43484a31; // "CHJ1"
+	private static final int HEADER = 4 + 8; // magic, when the segment was started
+	private static final int RECORD = 4 + 4; // size of the body, crc of the body
+	private static final int BODY = 1 + 8 + 4 + 3 * 4; // type, time, number, length of each field
+
+	// record types
+	static final byte ROOM = 1; // 'a' exists and keeps 'number' lines of history
+	static final byte ROOM_DELETED = 2; // 'a' is gone
+	static final byte CHAT = 3; // 'b' said 'c' in room 'a'
+	static final byte PM = 4; // 'a' sent 'b' the private message 'c'
+
+	/**
+	* what the server does with each record when it starts up
+	**/
+	public interface Replay {
+		void room(String name, int history);
+		void roomDeleted(String name);
+		void chat(String room, String user, byte[] message);
+	}
+
+	/**
+	* writes a ROOM record for every room there is, at the start of each segment
+	**/
+	public interface Checkpoint {
+		void write(Journal j);
+	}
+
+	private static class Segment {
+		File file;
+		long created;
+
+		Segment(File file, long created) {
+			this.file = file;
+			this.created = created;
+		}
+	}
+
+	private File dir;
+	private ArrayDeque<Segment> segments; // oldest first, the last one is being written
+	private long nextSeq;
+	private Checkpoint checkpoint;
+	private Lock lock; // appends come from every room loop and io thread
+	private MappedByteBuffer current;
+	private boolean dirty; // written since the last sync
+	private boolean checkpointing;
+	private ArrayList<MappedByteBuffer> sealed; // full segments the sync thread hasn't flushed yet
+	private CRC32 crc;
+
+	public Journal(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		this.dir = dir;
+		this.segments = new ArrayDeque<Segment>();
+		this.nextSeq = 0;
+		this.lock = new ReentrantLock();
+		this.dirty = false;
+		this.checkpointing = false;
+		this.sealed = new ArrayList<MappedByteBuffer>();
+		this.crc = new CRC32();
+
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+		Arrays.sort(files); // names are zero padded sequence numbers
+		for (File f : files) {
+			try {
+				nextSeq = Math.max(nextSeq, Long.parseLong(f.getName().substring(0, f.getName().length() - 4)) + 1);
+			} catch (NumberFormatException e) {
+				continue; // not one of ours
+			}
+			segments.add(new Segment(f, 0));
+		}
+	}
+
+	/**
+	* goes through every record there is, oldest first
+	* a segment ends at the first record that isn't all there, e.g. one that was being written in a crash
+	**/
+	public void replay(Replay r) throws IOException {
+		for (Segment seg : segments) {
+			try (FileChannel ch = FileChannel.open(seg.file.toPath())) {
+				if (ch.size() < HEADER) {
+					continue;
+				}
+				ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if (b.getInt() != MAGIC) {
+					Log.warn("journal_segment_skipped", null, null, "skipping " + seg.file + ", it isn't a journal segment");
+					continue;
+				}
+				seg.created = b.getLong();
+				while (b.remaining() >= RECORD + BODY) {
+					int size = b.getInt();
+					int sum = b.getInt();
+					if (size < BODY || size > b.remaining()) {
+						break;
+					}
+					ByteBuffer body = b.slice();
+					body.limit(size);
+					crc.reset();
+					crc.update(body.duplicate());
+					if ((int) crc.getValue() != sum) {
+						break;
+					}
+					b.position(b.position() + size);
+					replay(body, r);
+				}
+			}
+		}
+	}
+
+	private void replay(ByteBuffer body, Replay r) {
+		byte type = body.get();
+		body.getLong(); // when
+		int number = body.getInt();
+		int la = body.getInt();
+		int lb = body.getInt();
+		int lc = body.getInt();
+		String a = string(body, la);
+		String b = string(body, lb);
+		byte[] c = new byte[lc];
+		body.get(c);
+		if (type == ROOM) {
+			r.room(a, number);
+		} else if (type == ROOM_DELETED) {
+			r.roomDeleted(a);
+		} else if (type == CHAT) {
+			r.chat(a, b, c);
+		}
+		// PMs are only kept for the record
+	}
+
+	private static String string(ByteBuffer b, int len) {
+		byte[] bytes = new byte[len];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	* starts a fresh segment and the sync thread, after replay()
+	**/
+	public void start(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+		lock.lock();
+		try {
+			roll();
+		} finally {
+			lock.unlock();
+		}
+		prune();
+		Thread t = new Thread(this, "journal-sync");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void roomCreated(String name, int history) {
+		append(ROOM, history, bytes(name), null, null);
+	}
+
+	public void roomDeleted(String name) {
+		append(ROOM_DELETED, 0, bytes(name), null, null);
+	}
+
+	/**
+	* 'message' is the already encoded line that went out to the room
+	**/
+	public void chat(String room, String user, SharedBuffer message) {
+		append(CHAT, 0, bytes(room), bytes(user), message.view(0));
+	}
+
+	public void pm(String from, String to, String message) {
+		append(PM, 0, bytes(from), bytes(to), ByteBuffer.wrap(bytes(message)));
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void append(byte type, int number, byte[] a, byte[] b, ByteBuffer c) {
+		int la = a.length;
+		int lb = (b == null) ? 0 : b.length;
+		int lc = (c == null) ? 0 : c.remaining();
+		int size = BODY + la + lb + lc;
+		if (HEADER + RECORD + size > SEGMENT) {
+			Log.warn("journal_record_too_big", null, null, "journal record too big for a segment, not kept");
+			return;
+		}
+
+		lock.lock();
+		try {
+			if (current == null) {
+				return; // gave up after an error
+			}
+			if (current.remaining() < RECORD + size) {
+				roll();
+				if (current == null) {
+					return;
+				}
+			}
+			int at = current.position();
+			current.position(at + RECORD);
+			int start = current.position();
+			current.put(type);
+			current.putLong(System.currentTimeMillis());
+			current.putInt(number);
+			current.putInt(la);
+			current.putInt(lb);
+			current.putInt(lc);
+			current.put(a);
+			if (b != null) {
+				current.put(b);
+			}
+			if (c != null) {
+				current.put(c);
+			}
+			int end = current.position();
+
+			ByteBuffer body = current.duplicate();
+			body.position(start);
+			body.limit(end);
+			crc.reset();
+			crc.update(body);
+			current.putInt(at + 4, (int) crc.getValue());
+			current.putInt(at, size); // last, so a reader never sees a size without the rest
+			dirty = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	* seals the segment being written and starts the next one with a checkpoint, lock must be held
+	**/
+	private void roll() {
+		if (current != null) {
+			sealed.add(current);
+			current = null;
+		}
+		long now = System.currentTimeMillis();
+		File f = new File(dir, String.format("%020d.seg", nextSeq++));
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT); // stays mapped after the close
+		} catch (IOException e) {
+			Log.error("journal_segment_failed", null, null, "error creating journal segment " + f + ", nothing more will be journaled", e);
+			return;
+		}
+		current.putInt(MAGIC);
+		current.putLong(now);
+		segments.add(new Segment(f, now));
+		dirty = true;
+
+		if (checkpoint != null && !checkpointing) { // a checkpoint bigger than a segment just carries on into the next
+			checkpointing = true;
+			try {
+				checkpoint.write(this);
+			} finally {
+				checkpointing = false;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(SYNC_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			sync();
+		}
+	}
+
+	/**
+	* flushes everything written since last time to disk, then drops old segments if a new one's started
+	**/
+	private void sync() {
+		MappedByteBuffer toForce;
+		ArrayList<MappedByteBuffer> full;
+		lock.lock();
+		try {
+			toForce = dirty ? current : null;
+			dirty = false;
+			full = sealed;
+			sealed = new ArrayList<MappedByteBuffer>();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			for (MappedByteBuffer m : full) {
+				m.force();
+			}
+			if (toForce != null) {
+				toForce.force();
+			}
+		} catch (RuntimeException e) {
+			Log.error("journal_sync_failed", null, null, "error syncing the journal", e);
+		}
+		if (!full.isEmpty()) {
+			prune();
+		}
+	}
+
+	/**
+	* deletes the oldest segments while there are too many bytes of them or they're too old
+	* a segment is too old once the one after it was started too long ago, so nothing in it is newer
+	**/
+	private void prune() {
+		long now = System.currentTimeMillis();
+		while (true) {
+			Segment oldest;
+			Segment next;
+			lock.lock();
+			try {
+				if (segments.size() < 2) {
+					return; // never the one being written
+				}
+				Iterator<Segment> it = segments.iterator();
+				oldest = it.next();
+				next = it.next();
+				boolean tooBig = (long) segments.size() * SEGMENT > MAX_BYTES;
+				boolean tooOld = MAX_AGE > 0 && next.created > 0 && now - next.created > MAX_AGE;
+				if (!tooBig && !tooOld) {
+					return;
+				}
+				segments.pollFirst();
+			} finally {
+				lock.unlock();
+			}
+			if (!oldest.file.delete()) {
+				Log.warn("journal_prune_failed", null, null, "error deleting old journal segment " + oldest.file);
+			}
+		}
+	}
+}
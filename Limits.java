@@ -0,0 +1,70 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* the rate limits, all off unless they're set
+* - each user: lines a second and bytes a second, checked on their io thread as lines come in, before
+*   anything's queued for a room - so a flood never reaches the broadcast path
+* - each room: chat lines a second, checked on the room's loop
+* - each source address: new connections a second, checked at accept
+* what happens to a user over their limit is chat.limitAction - their line waits until it's within it,
+* is dropped (with a notice the first time), or they're disconnected
+* a room over its limit drops the line with a notice, and a connection over its limit is refused
+**/
+public class Limits {
+	public enum Action { DELAY, DROP, DISCONNECT }
+
+	public static final TokenBucket.Limit USER_LINES = TokenBucket.Limit.get("chat.limitUserLines");
+	public static final TokenBucket.Limit USER_BYTES = TokenBucket.Limit.get("chat.limitUserBytes");
+	public static final TokenBucket.Limit ROOM_LINES = TokenBucket.Limit.get("chat.limitRoomLines");
+	public static final TokenBucket.Limit CONNECTIONS = TokenBucket.Limit.get("chat.limitConnections");
+	public static final Action ACTION = Action.valueOf(System.getProperty("chat.limitAction", "drop").toUpperCase());
+	// longest a line is held back in delay mode - past that it's dropped, so a paste can't queue up forever
+	public static final long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.limitMaxDelay", 5000));
+
+	// one bucket per address, swept of full (i.e. idle) ones whenever it's doubled in size
+	private static final ConcurrentHashMap<InetAddress, TokenBucket> addresses = new ConcurrentHashMap<InetAddress, TokenBucket>();
+	private static final AtomicInteger sweepAt = new AtomicInteger(1024);
+
+	/**
+	* true if 'address' can open another connection now
+	**/
+	public static boolean connectionAllowed(InetAddress address) {
+		if (CONNECTIONS == null || address == null) {
+			return true;
+		}
+		TokenBucket b = addresses.get(address);
+		if (b == null) {
+			b = addresses.computeIfAbsent(address, a -> CONNECTIONS.bucket());
+			if (addresses.size() > sweepAt.get()) {
+				sweep();
+			}
+		}
+		return b.tryTake(1) == 0;
+	}
+
+	private static void sweep() {
+		addresses.values().removeIf(TokenBucket::isFull); // a full one is the same as a new one
+		sweepAt.set(Math.max(1024, 2 * addresses.size()));
+	}
+
+	/**
+	* runs 'task' after 'delay' nanos - tasks due at the same time run in the order they were handed in
+	**/
+	public static void later(Runnable task, long delay) {
+		Delayer.executor.schedule(task, delay, TimeUnit.NANOSECONDS);
+	}
+
+	// holds the thread that runs delayed lines, so it's only started the first time one's needed
+	private static class Delayer {
+		static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "limit-delay");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+}
@@ -0,0 +1,96 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+* splits what a client sends into lines, however the reads happen to be cut up
+* a read can hold several lines (pipelined commands) or part of one, lines can end in CRLF or just LF,
+* and the unfinished end of a read is kept in a buffer until the rest arrives
+* the buffer's only made once a read stops partway through a line, and grows up to the limit - most
+* clients send whole lines, so most never need one
+* a line that won't fit is thrown away up to its newline and reported instead
+* one per connection, only used by the thread reading it
+**/
+public class LineDecoder {
+	public static final int MAX_LINE = Integer.getInteger("chat.maxLine", 2048);
+
+	/**
+	* where the lines go
+	**/
+	public interface Listener {
+		void line(String line, int bytes); // 'bytes' is how long it was as sent, without its line ending
+		void overlong(); // a line longer than the limit was dropped
+	}
+
+	private static final int FIRST_BUFFER = 128;
+
+	private final int max;
+	private byte[] buf; // start of the current line, from earlier reads - null until there's been one
+	private int used;
+	private boolean skipping; // dropping the rest of a line that was too long
+
+	public LineDecoder(int max) {
+		this.max = max;
+		this.used = 0;
+		this.skipping = false;
+	}
+
+	/**
+	* hands every line completed by 'len' more bytes to 'l'
+	**/
+	public void decode(byte[] data, int off, int len, Listener l) {
+		int end = off + len;
+		int start = off;
+		for (int i = off; i < end; i++) {
+			if (data[i] != '\n') {
+				continue;
+			}
+			int n = i - start;
+			if (skipping) {
+				skipping = false; // that's the end of it
+			} else if (used + n > max) {
+				l.overlong();
+			} else if (used == 0) {
+				line(data, start, n, l);
+			} else {
+				room(used + n);
+				System.arraycopy(data, start, buf, used, n);
+				line(buf, 0, used + n, l);
+			}
+			used = 0;
+			start = i + 1;
+		}
+
+		// keep the unfinished line for next time
+		int rest = end - start;
+		if (skipping || rest == 0) {
+			return;
+		}
+		if (used + rest > max) {
+			used = 0;
+			skipping = true;
+			l.overlong();
+		} else {
+			room(used + rest);
+			System.arraycopy(data, start, buf, used, rest);
+			used += rest;
+		}
+	}
+
+	/**
+	* makes sure buf holds at least 'n' bytes (never more than max are asked for)
+	**/
+	private void room(int n) {
+		if (buf == null) {
+			buf = new byte[Math.min(max, Math.max(FIRST_BUFFER, n))];
+		} else if (n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.min(max, Math.max(buf.length * 2, n)));
+		}
+	}
+
+	private static void line(byte[] b, int off, int len, Listener l) {
+		if (len > 0 && b[off + len - 1] == '\r') {
+			len--;
+		}
+		l.line(new String(b, off, len, StandardCharsets.UTF_8), len);
+	}
+}
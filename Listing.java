@@ -0,0 +1,103 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* a list (of users or rooms) rendered and encoded once, and handed to everyone who asks until it changes
+* names can be marked as they're added, so the spot right after each one is known and a reader
+* can have " (** this is you!)" slotted in without the list being copied
+**/
+public class Listing {
+	final long version; // of the Cache it was built for
+	final SharedBuffer text;
+	private final HashMap<String, Integer> marks; // name -> byte offset just past it
+
+	private Listing(long version, SharedBuffer text, HashMap<String, Integer> marks) {
+		this.version = version;
+		this.text = text;
+		this.marks = marks;
+	}
+
+	/**
+	* byte offset just past 'name', or -1 if it wasn't marked
+	**/
+	int mark(String name) {
+		Integer at = marks.get(name);
+		return at == null ? -1 : at;
+	}
+
+	/**
+	* builds the text of a Listing
+	**/
+	static class Builder {
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private HashMap<String, Integer> marks = new HashMap<String, Integer>();
+
+		Builder add(String text) {
+			byte[] b = text.getBytes(StandardCharsets.UTF_8);
+			out.write(b, 0, b.length);
+			return this;
+		}
+
+		/**
+		* adds 'name' and remembers where it ends
+		**/
+		Builder addMarked(String name) {
+			add(name);
+			marks.put(name, out.size());
+			return this;
+		}
+
+		Listing build(long version) {
+			return new Listing(version, SharedBuffer.wrap(out.toByteArray()), marks);
+		}
+	}
+
+	/**
+	* the latest Listing of something - changed() whenever it changes, and the next get() rebuilds it
+	* readers of an up to date listing don't lock anything
+	**/
+	static class Cache {
+		interface Source {
+			Listing build(long version);
+		}
+
+		private AtomicLong version;
+		private volatile Listing current;
+		private Lock lock; // one rebuild at a time
+		private Source source;
+
+		Cache(Source source) {
+			this.version = new AtomicLong();
+			this.lock = new ReentrantLock();
+			this.source = source;
+		}
+
+		void changed() {
+			version.incrementAndGet();
+		}
+
+		Listing get() {
+			Listing l = current;
+			if (l != null && l.version == version.get()) {
+				return l;
+			}
+			lock.lock();
+			try {
+				// read the version before building, so a change made while we build gets a rebuild too
+				long v = version.get();
+				l = current;
+				if (l == null || l.version != v) {
+					l = source.build(v);
+					current = l;
+				}
+				return l;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* logging that never makes the caller wait on stderr
+* a log call fills in a slot of a preallocated ring (claimed with a compare-and-set, no lock) with the
+* event name and whatever fields it has, and a background thread turns the slots into lines and
+* writes them out in batches - the caller only passes strings it already has, so nothing's formatted
+* on its thread
+* each event is rate limited on its own, so a burst of the same failure (e.g. hundreds of writes failing
+* when the network drops) logs a few lines and then how many were left out, and if the ring's full
+* the line is dropped and counted rather than waited for
+* lines look like: 2024-01-01T12:00:00.000Z WARN send_failed user=bob room=main msg="..." error="..."
+**/
+public class Log implements Runnable {
+	private static final int SIZE = Integer.highestOneBit(Math.max(16, Integer.getInteger("chat.logBuffer", 4096))); // slots in the ring
+	private static final TokenBucket.Limit RATE = TokenBucket.Limit.get("chat.logRate", "20/50"); // lines a second for each event
+	private static final long IDLE = TimeUnit.MILLISECONDS.toNanos(10); // how long the writer sleeps when there's nothing to write
+	private static final long REPORT = TimeUnit.SECONDS.toNanos(1); // how often it says what's been left out since
+
+	static final String INFO = "INFO";
+	static final String WARN = "WARN";
+	static final String ERROR = "ERROR";
+
+	private static class Entry {
+		volatile long published = -1; // the sequence number it was filled in for
+		long time;
+		String level;
+		String event;
+		String user;
+		String room;
+		String msg;
+		Throwable error;
+		long suppressed; // lines of this event left out just before it
+	}
+
+	/**
+	* how often an event is being logged
+	**/
+	private static class Sampler {
+		TokenBucket bucket = (RATE == null) ? null : RATE.bucket();
+		AtomicLong suppressed = new AtomicLong();
+		volatile String level; // of the last line left out
+	}
+
+	private static final Entry[] ring = new Entry[SIZE];
+	private static final AtomicLong tail = new AtomicLong(); // next sequence number to hand out
+	private static volatile long head; // next sequence number to be written, only moved by the writer
+	private static final LongAdder dropped = new LongAdder(); // lines lost to a full ring
+	private static final ConcurrentHashMap<String, Sampler> samplers = new ConcurrentHashMap<String, Sampler>();
+	private static final Lock writing = new ReentrantLock(); // the writer thread and the shutdown hook take turns
+	private static final PrintStream out = System.err;
+
+	static {
+		for (int i = 0; i < SIZE; i++) {
+			ring[i] = new Entry();
+		}
+		Thread t = new Thread(new Log(), "log-writer");
+		t.setDaemon(true);
+		t.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+	}
+
+	public static void info(String event, String user, String room, String msg) {
+		log(INFO, event, user, room, msg, null);
+	}
+
+	public static void warn(String event, String user, String room, String msg) {
+		log(WARN, event, user, room, msg, null);
+	}
+
+	public static void warn(String event, String user, String room, String msg, Throwable error) {
+		log(WARN, event, user, room, msg, error);
+	}
+
+	public static void error(String event, String user, String room, String msg) {
+		log(ERROR, event, user, room, msg, null);
+	}
+
+	public static void error(String event, String user, String room, String msg, Throwable error) {
+		log(ERROR, event, user, room, msg, error);
+	}
+
+	/**
+	* 'user', 'room' and 'error' can be null if there's nothing to say for them
+	**/
+	private static void log(String level, String event, String user, String room, String msg, Throwable error) {
+		Sampler s = samplers.get(event);
+		if (s == null) {
+			s = samplers.computeIfAbsent(event, e -> new Sampler());
+		}
+		if (s.bucket != null && s.bucket.tryTake(1) > 0) {
+			s.level = level;
+			s.suppressed.incrementAndGet();
+			return;
+		}
+
+		long seq;
+		while (true) {
+			seq = tail.get();
+			if (seq - head >= SIZE) { // the writer's that far behind - don't wait for it
+				dropped.increment();
+				return;
+			}
+			if (tail.compareAndSet(seq, seq + 1)) {
+				break;
+			}
+		}
+		Entry e = ring[(int) seq & (SIZE - 1)];
+		e.time = System.currentTimeMillis();
+		e.level = level;
+		e.event = event;
+		e.user = user;
+		e.room = room;
+		e.msg = msg;
+		e.error = error;
+		e.suppressed = (s.suppressed.get() == 0) ? 0 : s.suppressed.getAndSet(0);
+		e.published = seq; // hands it to the writer
+	}
+
+	@Override
+	public void run() {
+		long report = System.nanoTime() + REPORT;
+		while (true) {
+			if (System.nanoTime() - report >= 0) {
+				reportSuppressed();
+				report = System.nanoTime() + REPORT;
+			}
+			if (!drain()) {
+				LockSupport.parkNanos(IDLE);
+			}
+		}
+	}
+
+	/**
+	* a line for each event that's had lines left out and hasn't logged since, so a burst that
+	* stops still says how big it was
+	**/
+	private static void reportSuppressed() {
+		StringBuilder b = null;
+		for (Map.Entry<String, Sampler> e : samplers.entrySet()) {
+			Sampler s = e.getValue();
+			if (s.suppressed.get() == 0) {
+				continue;
+			}
+			long n = s.suppressed.getAndSet(0);
+			if (b == null) {
+				b = new StringBuilder(128);
+			}
+			b.append(Instant.now()).append(' ').append(s.level).append(' ').append(e.getKey()).append(" suppressed=").append(n).append('\n');
+		}
+		if (b != null) {
+			writing.lock();
+			try {
+				out.print(b);
+				out.flush();
+			} finally {
+				writing.unlock();
+			}
+		}
+	}
+
+	/**
+	* writes out everything that's been logged so far, e.g. on the way out
+	**/
+	static void flush() {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (head != tail.get() && System.nanoTime() - end < 0) {
+			if (!drain()) {
+				Thread.yield(); // a slot's been claimed but not filled in yet
+			}
+		}
+	}
+
+	/**
+	* writes every line that's ready, returns false if there weren't any
+	**/
+	private static boolean drain() {
+		writing.lock();
+		try {
+			StringBuilder b = null;
+			long h = head;
+			Entry e;
+			while ((e = ring[(int) h & (SIZE - 1)]).published == h) {
+				if (b == null) {
+					b = new StringBuilder(256);
+				}
+				format(b, e);
+				e.user = null; // don't hang on to anything until the slot comes round again
+				e.room = null;
+				e.msg = null;
+				e.error = null;
+				head = ++h;
+				if (b.length() > 16 * 1024) {
+					out.print(b);
+					b.setLength(0);
+				}
+			}
+			long lost = dropped.sumThenReset();
+			if (lost > 0) {
+				if (b == null) {
+					b = new StringBuilder(128);
+				}
+				b.append(Instant.now()).append(' ').append(WARN).append(" log_dropped count=").append(lost).append('\n');
+			}
+			if (b == null) {
+				return false;
+			}
+			out.print(b);
+			out.flush();
+			return true;
+		} finally {
+			writing.unlock();
+		}
+	}
+
+	private static void format(StringBuilder b, Entry e) {
+		b.append(Instant.ofEpochMilli(e.time)).append(' ').append(e.level).append(' ').append(e.event);
+		field(b, "user", e.user);
+		field(b, "room", e.room);
+		field(b, "msg", e.msg);
+		if (e.error != null) {
+			field(b, "error", e.error.toString());
+		}
+		if (e.suppressed > 0) {
+			b.append(" suppressed=").append(e.suppressed);
+		}
+		b.append('\n');
+	}
+
+	/**
+	* appends ' name=value', quoting the value if it needs it
+	**/
+	private static void field(StringBuilder b, String name, String value) {
+		if (value == null) {
+			return;
+		}
+		b.append(' ').append(name).append('=');
+		boolean quote = value.isEmpty();
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=';
+		}
+		if (!quote) {
+			b.append(value);
+			return;
+		}
+		b.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				b.append('\\').append(c);
+			} else if (c == '\n') {
+				b.append("\\n");
+			} else if (c < ' ') {
+				b.append(' ');
+			} else {
+				b.append(c);
+			}
+		}
+		b.append('"');
+	}
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+* a message bus between nodes in the same process - each node has one thread its messages are
+* handed to its listener on, so they arrive in order and a slow node doesn't hold up the others
+* for trying a cluster out (or measuring what fan-out across nodes costs) on one machine
+**/
+public class LoopbackBus implements MessageBus {
+	private final ExecutorService[] inboxes;
+	private final Listener[] listeners;
+	private final CountDownLatch[] registered;
+
+	public LoopbackBus(int nodes) {
+		this.inboxes = new ExecutorService[nodes];
+		this.listeners = new Listener[nodes];
+		this.registered = new CountDownLatch[nodes];
+		for (int i = 0; i < nodes; i++) {
+			String name = "bus-" + i;
+			inboxes[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+			CountDownLatch latch = new CountDownLatch(1);
+			registered[i] = latch;
+			// nothing's delivered until the node has a listener
+			inboxes[i].execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+	}
+
+	public int nodes() {
+		return inboxes.length;
+	}
+
+	public void register(int node, Listener listener) {
+		listeners[node] = listener;
+		registered[node].countDown();
+	}
+
+	public void send(int node, Message m) {
+		inboxes[node].execute(() -> {
+			try {
+				listeners[node].receive(m);
+			} catch (RuntimeException e) {
+				Log.error("bus_delivery_failed", null, null, "error handling a message from node " + m.from, e);
+			}
+		});
+	}
+}
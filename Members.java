@@ -0,0 +1,46 @@
+import java.util.Arrays;
+
+/**
+* who's in a room, as SessionTable numbers in the order they came in
+* belongs to the room's loop - only touched on that thread, so nothing here locks
+**/
+public class Members {
+	private int[] ids;
+	private int size;
+
+	public Members() {
+		this.ids = new int[4];
+	}
+
+	void add(int id) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = id;
+	}
+
+	/**
+	* takes 'id' out, everyone after them moves up one so the order's kept
+	* (it's only a copy of a few ints, and leaving is rare next to being sent to)
+	**/
+	void remove(int id) {
+		for (int i = 0; i < size; i++) {
+			if (ids[i] == id) {
+				System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+				size--;
+				return;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	* the numbers, only the first size() of them are members
+	**/
+	int[] ids() {
+		return ids;
+	}
+}
@@ -0,0 +1,56 @@
+/**
+* how the servers in a cluster talk to each other
+* every server is a node with a number from 0 to nodes() - 1, and a message sent to a node is handed to
+* its listener on a thread of the bus's own, in the order each sender sent them - nothing's promised
+* about the order of messages from different senders
+* messages only hold strings and numbers, so a bus that goes over the network just has to write
+* those out - LoopbackBus hands them across in memory, for running a cluster in one process
+**/
+public interface MessageBus {
+	int nodes();
+
+	/**
+	* where messages for 'node' go from now on - anything sent to it before this waits for it
+	**/
+	void register(int node, Listener listener);
+
+	void send(int node, Message m);
+
+	/**
+	* sends 'm' to every node but the one it's from
+	**/
+	default void publish(Message m) {
+		for (int i = 0; i < nodes(); i++) {
+			if (i != m.from) {
+				send(i, m);
+			}
+		}
+	}
+
+	interface Listener {
+		void receive(Message m);
+	}
+
+	/**
+	* what 'a', 'b', 'c' and 'number' mean depends on the type, like a journal record
+	**/
+	final class Message {
+		final int type;
+		final int from; // node that sent it
+		final int request; // matches a reply up with what it answers, 0 if nothing's waiting on one
+		final int number;
+		final String a;
+		final String b;
+		final String c;
+
+		Message(int type, int from, int request, int number, String a, String b, String c) {
+			this.type = type;
+			this.from = from;
+			this.request = request;
+			this.number = number;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+	}
+}
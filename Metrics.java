@@ -0,0 +1,290 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+* counters and histograms for what the server's doing, off unless chat.metrics is set
+* everything is recorded into LongAdders, which spread threads over separate cells so recording never
+* contends - and ON is a constant, so when it's off the jit drops the recording code altogether
+* it can be read over JMX (ChatServer:type=Metrics) or as plain text from http://host:chat.metricsPort/metrics
+**/
+public class Metrics implements MetricsMXBean, Runnable {
+	public static final boolean ON = Boolean.getBoolean("chat.metrics");
+	private static final int PORT = Integer.getInteger("chat.metricsPort", 9555);
+
+	public static final LongAdder connectionsOpened = new LongAdder();
+	public static final LongAdder connectionsClosed = new LongAdder();
+	public static final LongAdder linesIn = new LongAdder();
+	public static final LongAdder bytesIn = new LongAdder();
+	public static final LongAdder messagesOut = new LongAdder(); // queued for a client, one per send()
+	public static final LongAdder bytesOut = new LongAdder();
+	public static final LongAdder writeFailures = new LongAdder(); // writes to a socket that failed
+	public static final LongAdder overflows = new LongAdder(); // messages dropped or clients cut off for falling behind
+	public static final LongAdder batchedLines = new LongAdder(); // chat lines held back to go out in a batch
+	public static final LongAdder batchSends = new LongAdder(); // sends of those batches, one per member per batch
+	public static final LongAdder batchSendsSaved = new LongAdder(); // sends batching did without, one per member per extra line
+	public static final Histogram fanout = new Histogram(); // nanos to hand one message to everyone in a room
+	public static final Histogram loopDelay = new Histogram(); // nanos a task waited before its room loop ran it
+	public static final Histogram queueDepth = new Histogram(); // bytes waiting on a client after each send()
+
+	/**
+	* the things that are looked up rather than counted
+	**/
+	public interface Source {
+		int users();
+		Collection<Room> rooms();
+	}
+
+	private Source source;
+	private volatile long linesInPerSecond;
+	private volatile long messagesOutPerSecond;
+
+	/**
+	* counts values into power of two buckets, so a quantile is only ever out by less than 2x
+	**/
+	public static class Histogram {
+		private final LongAdder[] buckets; // bucket i counts values under 2^i but not under 2^(i-1)
+		private final LongAdder sum;
+		private final LongAccumulator max;
+
+		Histogram() {
+			this.buckets = new LongAdder[64];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+			this.sum = new LongAdder();
+			this.max = new LongAccumulator(Math::max, 0);
+		}
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		public long count() {
+			long n = 0;
+			for (LongAdder b : buckets) {
+				n += b.sum();
+			}
+			return n;
+		}
+
+		public long sum() {
+			return sum.sum();
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		/**
+		* the top of the bucket the 'q' quantile falls in
+		**/
+		public long quantile(double q) {
+			long[] counts = new long[buckets.length];
+			long n = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				counts[i] = buckets[i].sum();
+				n += counts[i];
+			}
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min((i == 0) ? 0 : (1L << i) - 1, max());
+				}
+			}
+			return 0;
+		}
+	}
+
+	public Metrics(Source source) {
+		this.source = source;
+	}
+
+	/**
+	* registers with JMX, starts the http endpoint and the thread that works out the rates
+	**/
+	public void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ChatServer:type=Metrics"));
+		} catch (Exception e) {
+			Log.error("metrics_jmx_failed", null, null, "error registering metrics with JMX", e);
+		}
+		if (PORT > 0) {
+			try {
+				HttpServer http = HttpServer.create(new InetSocketAddress(PORT), 0);
+				http.createContext("/metrics", exchange -> {
+					byte[] body = getText().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				});
+				http.start();
+			} catch (IOException e) {
+				Log.error("metrics_http_failed", null, null, "error starting the metrics endpoint on port " + PORT, e);
+			}
+		}
+		Thread t = new Thread(this, "metrics");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	* works out lines in and messages out over the last second, once a second
+	**/
+	@Override
+	public void run() {
+		long lastIn = linesIn.sum();
+		long lastOut = messagesOut.sum();
+		while (true) {
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long in = linesIn.sum();
+			long out = messagesOut.sum();
+			linesInPerSecond = in - lastIn;
+			messagesOutPerSecond = out - lastOut;
+			lastIn = in;
+			lastOut = out;
+		}
+	}
+
+	public long getActiveConnections() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	public int getUsersOnline() {
+		return source.users();
+	}
+
+	public int getRooms() {
+		return source.rooms().size();
+	}
+
+	public long getLinesIn() {
+		return linesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getLinesInPerSecond() {
+		return linesInPerSecond;
+	}
+
+	public long getMessagesOutPerSecond() {
+		return messagesOutPerSecond;
+	}
+
+	public long getWriteFailures() {
+		return writeFailures.sum();
+	}
+
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	public long getBatchedLines() {
+		return batchedLines.sum();
+	}
+
+	public long getBatchSendsSaved() {
+		return batchSendsSaved.sum();
+	}
+
+	public long getFanoutP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(fanout.quantile(0.99));
+	}
+
+	public long getLoopDelayP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(loopDelay.quantile(0.99));
+	}
+
+	public long getQueueDepthP99Bytes() {
+		return queueDepth.quantile(0.99);
+	}
+
+	/**
+	* everything, in the prometheus text format
+	**/
+	public String getText() {
+		StringBuilder b = new StringBuilder();
+		gauge(b, "chat_connections_active", getActiveConnections());
+		counter(b, "chat_connections_opened_total", connectionsOpened.sum());
+		gauge(b, "chat_users_online", getUsersOnline());
+		counter(b, "chat_lines_in_total", linesIn.sum());
+		counter(b, "chat_bytes_in_total", bytesIn.sum());
+		gauge(b, "chat_lines_in_per_second", linesInPerSecond);
+		counter(b, "chat_messages_out_total", messagesOut.sum());
+		counter(b, "chat_bytes_out_total", bytesOut.sum());
+		gauge(b, "chat_messages_out_per_second", messagesOutPerSecond);
+		counter(b, "chat_write_failures_total", writeFailures.sum());
+		counter(b, "chat_overflows_total", overflows.sum());
+		counter(b, "chat_batched_lines_total", batchedLines.sum());
+		counter(b, "chat_batch_sends_total", batchSends.sum());
+		counter(b, "chat_batch_sends_saved_total", batchSendsSaved.sum());
+		summary(b, "chat_fanout_seconds", fanout, 1e9);
+		summary(b, "chat_room_loop_delay_seconds", loopDelay, 1e9);
+		summary(b, "chat_outbound_queue_bytes", queueDepth, 1);
+
+		// users per room, as a histogram over the rooms there are right now
+		long[] upTo = { 0, 1, 10, 100, 1000, 10000 };
+		long[] counts = new long[upTo.length];
+		long rooms = 0;
+		long users = 0;
+		for (Room r : source.rooms()) {
+			int n = r.occupants.get();
+			for (int i = 0; i < upTo.length; i++) {
+				if (n <= upTo[i]) {
+					counts[i]++;
+				}
+			}
+			rooms++;
+			users += n;
+		}
+		b.append("# TYPE chat_room_users histogram\n");
+		for (int i = 0; i < upTo.length; i++) {
+			b.append("chat_room_users_bucket{le=\"").append(upTo[i]).append("\"} ").append(counts[i]).append('\n');
+		}
+		b.append("chat_room_users_bucket{le=\"+Inf\"} ").append(rooms).append('\n');
+		b.append("chat_room_users_sum ").append(users).append('\n');
+		b.append("chat_room_users_count ").append(rooms).append('\n');
+		return b.toString();
+	}
+
+	private static void gauge(StringBuilder b, String name, long value) {
+		b.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder b, String name, long value) {
+		b.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder b, String name, Histogram h, double per) {
+		b.append("# TYPE ").append(name).append(" summary\n");
+		for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+			b.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.quantile(q) / per).append('\n');
+		}
+		b.append(name).append("_sum ").append(h.sum() / per).append('\n');
+		b.append(name).append("_count ").append(h.count()).append('\n');
+	}
+}
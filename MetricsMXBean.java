@@ -0,0 +1,20 @@
+/**
+* what Metrics shows over JMX
+**/
+public interface MetricsMXBean {
+	long getActiveConnections();
+	int getUsersOnline();
+	int getRooms();
+	long getLinesIn();
+	long getMessagesOut();
+	long getLinesInPerSecond();
+	long getMessagesOutPerSecond();
+	long getWriteFailures();
+	long getOverflows();
+	long getBatchedLines();
+	long getBatchSendsSaved();
+	long getFanoutP99Micros();
+	long getLoopDelayP99Micros();
+	long getQueueDepthP99Bytes();
+	String getText(); // everything, as the http endpoint has it
+}
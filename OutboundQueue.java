@@ -0,0 +1,262 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+* messages waiting to go out to one client
+* a message is up to three SharedBuffer parts (e.g. prefix, body, prompt) that go out back to
+* back, and the same parts are queued for every member of a room so nothing is copied per client
+* not thread safe - the connection that owns it locks around it
+**/
+public class OutboundQueue {
+	// what happens when a client stops reading and their queue fills up
+	public enum Overflow { DROP_OLDEST, DISCONNECT, COALESCE }
+
+	public static final int LIMIT = Integer.getInteger("chat.outQueueBytes", 256 * 1024);
+	public static final Overflow POLICY = Overflow.valueOf(System.getProperty("chat.overflow", "drop-oldest").toUpperCase().replace('-', '_'));
+
+	private SharedBuffer[] parts; // ring of queued parts, oldest at 'head'
+	private boolean[] ends; // true where a part is the last one of its message
+	private int head;
+	private int count;
+	private int offset; // how much of the first part has gone out already
+	private boolean midMessage; // the first part isn't the start of its message
+	private int inFlight; // parts handed out by gather() that a writer is working on
+	private long gathered; // bytes in those parts
+	private int bytes; // bytes queued and not written yet
+	private int limit;
+	private Overflow policy;
+	private SharedBuffer notice; // the last 'skipped N messages' note we queued
+	private int noticeCount; // the N in it
+
+	public OutboundQueue() {
+		this(LIMIT, POLICY);
+	}
+
+	public OutboundQueue(int limit, Overflow policy) {
+		this.parts = new SharedBuffer[16];
+		this.ends = new boolean[16];
+		this.head = 0;
+		this.count = 0;
+		this.offset = 0;
+		this.midMessage = false;
+		this.inFlight = 0;
+		this.bytes = 0;
+		this.limit = limit;
+		this.policy = policy;
+	}
+
+	/**
+	* queues a message made of 'a' then 'b' then 'c' ('b' and 'c' can be null), retaining each part
+	* returns false if the client is too far behind and should be disconnected
+	**/
+	public boolean offer(SharedBuffer a, SharedBuffer b, SharedBuffer c) {
+		int len = a.length() + (b == null ? 0 : b.length()) + (c == null ? 0 : c.length());
+		if (bytes + len > limit && count > 0) {
+			if (policy == Overflow.DISCONNECT) {
+				if (Metrics.ON) {
+					Metrics.overflows.increment();
+				}
+				return false;
+			} else if (policy == Overflow.DROP_OLDEST) {
+				while (bytes + len > limit && dropNext() != null) {
+					// keep going until it fits or only what's being written is left
+					if (Metrics.ON) {
+						Metrics.overflows.increment();
+					}
+				}
+			} else {
+				int skipped = dropAll();
+				if (Metrics.ON) {
+					Metrics.overflows.add(skipped);
+				}
+				if (skipped > 0) {
+					notice = SharedBuffer.wrap(("*** skipped " + skipped + " messages because you fell behind\n").getBytes(StandardCharsets.UTF_8));
+					noticeCount = skipped;
+					add(notice, true);
+				}
+			}
+		}
+		add(a, b == null && c == null);
+		if (b != null) {
+			add(b, c == null);
+		}
+		if (c != null) {
+			add(c, true);
+		}
+		if (Metrics.ON) {
+			Metrics.messagesOut.increment();
+			Metrics.bytesOut.add(len);
+			Metrics.queueDepth.record(bytes);
+		}
+		return true;
+	}
+
+	private void add(SharedBuffer p, boolean end) {
+		if (count == parts.length) {
+			grow();
+		}
+		int i = (head + count) & (parts.length - 1);
+		p.retain();
+		parts[i] = p;
+		ends[i] = end;
+		count++;
+		bytes += p.length();
+	}
+
+	private void grow() {
+		SharedBuffer[] newParts = new SharedBuffer[parts.length * 2];
+		boolean[] newEnds = new boolean[parts.length * 2];
+		for (int i = 0; i < count; i++) {
+			newParts[i] = parts[(head + i) & (parts.length - 1)];
+			newEnds[i] = ends[(head + i) & (parts.length - 1)];
+		}
+		parts = newParts;
+		ends = newEnds;
+		head = 0;
+	}
+
+	private SharedBuffer at(int i) {
+		return parts[(head + i) & (parts.length - 1)];
+	}
+
+	private boolean endsAt(int i) {
+		return ends[(head + i) & (parts.length - 1)];
+	}
+
+	/**
+	* drops the oldest message that hasn't started going out yet
+	* returns its first part, or null if there was nothing to drop
+	**/
+	private SharedBuffer dropNext() {
+		// skip whatever is half written or being written right now, up to the end of its message
+		int start = inFlight;
+		if (start == 0 && (offset > 0 || midMessage)) {
+			start = 1;
+		}
+		while (start > 0 && start < count && !endsAt(start - 1)) {
+			start++;
+		}
+		if (start >= count) {
+			return null;
+		}
+		int end = start;
+		while (!endsAt(end)) {
+			end++;
+		}
+		end++;
+
+		SharedBuffer first = at(start);
+		int n = end - start;
+		for (int i = start; i < end; i++) {
+			SharedBuffer p = at(i);
+			bytes -= p.length();
+			p.release();
+		}
+		// slide the parts in front of the gap up to close it
+		for (int i = start - 1; i >= 0; i--) {
+			int from = (head + i) & (parts.length - 1);
+			int to = (head + i + n) & (parts.length - 1);
+			parts[to] = parts[from];
+			ends[to] = ends[from];
+		}
+		for (int i = 0; i < n; i++) {
+			parts[(head + i) & (parts.length - 1)] = null;
+		}
+		head = (head + n) & (parts.length - 1);
+		count -= n;
+		return first;
+	}
+
+	/**
+	* drops everything that hasn't started going out yet, returns how many messages that was
+	* an earlier skipped note counts as the messages it stood for
+	**/
+	private int dropAll() {
+		int dropped = 0;
+		SharedBuffer p;
+		while ((p = dropNext()) != null) {
+			dropped += (p == notice) ? noticeCount : 1;
+		}
+		return dropped;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int bytes() {
+		return bytes;
+	}
+
+	/**
+	* fills 'out' with views of the queued parts for the calling thread to write in one go
+	* returns how many it filled - call advance() with however much got written afterwards
+	**/
+	public int gather(ByteBuffer[] out) {
+		int n = 0;
+		gathered = 0;
+		while (n < count && n < out.length) {
+			SharedBuffer p = at(n);
+			for (int j = 0; j < n; j++) {
+				if (at(j) == p) { // same buffer twice in one write - the next write gets the second one
+					inFlight = n;
+					return n;
+				}
+			}
+			out[n] = p.view(n == 0 ? offset : 0);
+			gathered += out[n].remaining();
+			n++;
+		}
+		inFlight = n;
+		return n;
+	}
+
+	/**
+	* how many bytes the last gather() handed out
+	**/
+	public long gathered() {
+		return gathered;
+	}
+
+	/**
+	* records that 'written' more bytes went out, releasing every part that's finished
+	**/
+	public void advance(long written) {
+		inFlight = 0;
+		while (count > 0) { // empty parts are finished even if nothing was written
+			SharedBuffer p = parts[head];
+			int left = p.length() - offset;
+			if (written < left) {
+				offset += (int) written;
+				bytes -= (int) written;
+				return;
+			}
+			written -= left;
+			bytes -= left;
+			offset = 0;
+			midMessage = !ends[head];
+			parts[head] = null;
+			head = (head + 1) & (parts.length - 1);
+			count--;
+			p.release();
+		}
+	}
+
+	/**
+	* drops everything that isn't being written right now
+	**/
+	public void clear() {
+		while (count > inFlight) {
+			int i = (head + count - 1) & (parts.length - 1);
+			bytes -= parts[i].length();
+			parts[i].release();
+			parts[i] = null;
+			count--;
+		}
+		if (count == 0) {
+			offset = 0;
+			midMessage = false;
+			bytes = 0;
+		}
+	}
+}
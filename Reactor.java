@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* selector loop that looks after a share of the clients in nio mode
+* one of these runs per reactor thread and every session it owns is handled on that thread
+**/
+public class Reactor implements Runnable {
+	private ChatServer server;
+	private Selector selector;
+	private ConcurrentLinkedQueue<SocketChannel> newChannels; // accepted but not registered yet
+	private ConcurrentLinkedQueue<ChannelConnection> lost; // closed without an eof, their sessions not told yet
+	private ByteBuffer readBuffer;
+
+	public Reactor(ChatServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.lost = new ConcurrentLinkedQueue<ChannelConnection>();
+		this.readBuffer = ByteBuffer.allocate(2000);
+	}
+
+	/**
+	* hands a freshly accepted channel over to this reactor's thread
+	**/
+	public void register(SocketChannel channel) {
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Log.error("select_failed", null, null, "error waiting on client connections", e);
+				return;
+			}
+			registerNewChannels();
+			hangUpLost();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				ChannelConnection conn = (ChannelConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable()) {
+						conn.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(conn);
+					}
+				} catch (CancelledKeyException e) {
+					// the session closed its connection while we were looking at it
+				}
+			}
+		}
+	}
+
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				ChannelConnection conn = new ChannelConnection(channel, key, this);
+				key.attach(conn);
+				conn.session = server.newSession(conn);
+			} catch (IOException e) {
+				Log.warn("accept_failed", null, null, "error setting up new connection", e);
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					Log.warn("close_failed", null, null, "error closing connection", e2);
+				}
+			}
+		}
+	}
+
+	/**
+	* 'conn' was closed from another thread, so there's no eof coming to read - their session gets
+	* told on this thread instead, the same as if there was
+	**/
+	void lost(ChannelConnection conn) {
+		lost.add(conn);
+		selector.wakeup();
+	}
+
+	private void hangUpLost() {
+		ChannelConnection conn;
+		while ((conn = lost.poll()) != null) {
+			if (!conn.session.isClosed()) {
+				conn.session.onClose();
+			}
+		}
+	}
+
+	/**
+	* reads whatever the client has sent and passes it on to their session
+	**/
+	private void read(ChannelConnection conn) {
+		int len;
+		readBuffer.clear();
+		try {
+			len = conn.channel.read(readBuffer);
+		} catch (IOException e) {
+			len = -1;
+		}
+
+		if (len == -1) { // user left
+			conn.stopReading(); // their cleanup is queued and may not have run yet - don't keep seeing the eof
+			if (!conn.session.isClosed()) {
+				conn.session.onClose();
+			}
+			return;
+		}
+		conn.session.onData(readBuffer.array(), 0, len);
+	}
+
+	/**
+	* output for a client in nio mode
+	* everything goes through a bounded queue - whoever sends tries to write it out straight away
+	* with one gathering write, and whatever the socket can't take waits for OP_WRITE
+	**/
+	static class ChannelConnection implements Connection {
+		SocketChannel channel;
+		SelectionKey key;
+		ChatServer.Session session;
+		private Reactor reactor; // the one reading it
+		private OutboundQueue queue; // written by the session but not by the socket yet
+		private ByteBuffer[] gather; // views of queued parts for one gathering write
+		private Lock lock; // writes can come from any reactor thread
+		private boolean waiting; // the socket is full and we're waiting on OP_WRITE
+		private boolean closing; // close once the queue is drained
+		private boolean dropped; // disconnected for falling behind - don't wait on them
+		private boolean eof; // nothing more to read from them
+
+		ChannelConnection(SocketChannel channel, SelectionKey key, Reactor reactor) {
+			this.channel = channel;
+			this.key = key;
+			this.reactor = reactor;
+			this.queue = new OutboundQueue();
+			this.gather = new ByteBuffer[16];
+			this.lock = new ReentrantLock();
+			this.waiting = false;
+			this.closing = false;
+			this.dropped = false;
+			this.eof = false;
+		}
+
+		public void send(SharedBuffer a, SharedBuffer b, SharedBuffer c) throws IOException {
+			lock.lock();
+			try {
+				if (closing || !channel.isOpen()) {
+					throw new ClosedChannelException();
+				}
+				if (!queue.offer(a, b, c)) {
+					disconnect();
+				} else if (!waiting) {
+					writeQueued();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		* called by the reactor when the socket has room again
+		**/
+		void flush() {
+			lock.lock();
+			try {
+				waiting = false;
+				writeQueued();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		* stops selecting for reads once they've hung up
+		**/
+		void stopReading() {
+			lock.lock();
+			try {
+				eof = true;
+				if (key.isValid()) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+			} catch (CancelledKeyException e) {
+				// already closed
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private int readOps() {
+			return eof ? 0 : SelectionKey.OP_READ;
+		}
+
+		/**
+		* writes as much of the queue as the socket takes, lock must be held
+		**/
+		private void writeQueued() {
+			try {
+				while (!queue.isEmpty()) {
+					int n = queue.gather(gather);
+					long written = channel.write(gather, 0, n);
+					long wanted = queue.gathered();
+					queue.advance(written);
+					if (written < wanted) { // socket's full
+						waiting = true;
+						key.interestOps(readOps() | SelectionKey.OP_WRITE);
+						key.selector().wakeup();
+						return;
+					}
+				}
+				if (closing) {
+					closeNow();
+				} else if (key.isValid() && key.interestOps() != readOps()) {
+					key.interestOps(readOps());
+				}
+			} catch (IOException e) {
+				if (Metrics.ON) {
+					Metrics.writeFailures.increment();
+				}
+				queue.advance(0);
+				closeNow();
+				reactor.lost(this);
+			} catch (CancelledKeyException e) {
+				queue.advance(0);
+				queue.clear();
+			}
+		}
+
+		/**
+		* gives up on a client that can't keep up
+		* shutting the input makes the reactor see them leave, which cleans up after them as usual
+		* (if it can't be shut, the reactor's told they've gone instead)
+		**/
+		private void disconnect() {
+			queue.clear();
+			dropped = true;
+			try {
+				channel.shutdownInput();
+			} catch (IOException e) {
+				closeNow();
+				reactor.lost(this);
+			}
+		}
+
+		public void close() throws IOException {
+			lock.lock();
+			try {
+				if (queue.isEmpty() || dropped || !key.isValid()) {
+					closeNow();
+				} else {
+					closing = true; // let the goodbye get out first
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void closeNow() {
+			queue.clear();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.warn("close_failed", null, null, "error closing connection", e);
+			}
+		}
+	}
+}
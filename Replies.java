@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* who each user's /replyPM goes to, and the other way round - everyone whose /replyPM goes to a user
+* so a user logging off or changing their name only touches their own conversations, not everyone's
+* a user's entries are changed holding the lock for their name (one of a few, picked by hash)
+**/
+public class Replies {
+	private static final int STRIPES = 64;
+
+	private final ConcurrentHashMap<String, String> partner; // user -> who they reply to
+	private final ConcurrentHashMap<String, Set<String>> pointing; // user -> who replies to them, only changed in compute()
+	private final Lock[] locks;
+
+	public Replies() {
+		this.partner = new ConcurrentHashMap<String, String>();
+		this.pointing = new ConcurrentHashMap<String, Set<String>>();
+		this.locks = new Lock[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	* who 'user' replies to, or null if they haven't had a PM
+	**/
+	public String get(String user) {
+		return partner.get(user);
+	}
+
+	/**
+	* 'user''s /replyPM goes to 'to' from now on
+	**/
+	public void set(String user, String to) {
+		Lock l = lock(user);
+		l.lock();
+		try {
+			String was = partner.put(user, to);
+			if (!to.equals(was)) {
+				if (was != null) {
+					unlink(was, user);
+				}
+				link(to, user);
+			}
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/**
+	* forgets 'user', who's logged off
+	* returns everyone whose /replyPM went to them, which it no longer does
+	**/
+	public List<String> remove(String user) {
+		Set<String> from;
+		Lock l = lock(user);
+		l.lock();
+		try {
+			String was = partner.remove(user);
+			if (was != null) {
+				unlink(was, user);
+			}
+			from = pointing.remove(user);
+		} finally {
+			l.unlock();
+		}
+
+		List<String> lost = new ArrayList<String>();
+		if (from == null) {
+			return lost;
+		}
+		for (String other : from) {
+			Lock o = lock(other);
+			o.lock();
+			try {
+				if (partner.remove(other, user)) {
+					unlink(user, other); // in case they PM'd them again just now
+					lost.add(other);
+				}
+			} finally {
+				o.unlock();
+			}
+		}
+		return lost;
+	}
+
+	/**
+	* 'oldName' is called 'newName' now - their replies and everyone's replies to them follow
+	* anyone who starts replying to 'oldName' while this is going on is moved along too
+	**/
+	public void rename(String oldName, String newName) {
+		Lock l = lock(oldName);
+		Lock n = lock(newName);
+		// always the lower stripe first, so two renames can't wait on each other
+		Lock first = (stripe(oldName) <= stripe(newName)) ? l : n;
+		Lock second = (first == l) ? n : l;
+		first.lock();
+		second.lock();
+		try {
+			String to = partner.remove(oldName);
+			if (to != null) {
+				unlink(to, oldName);
+				partner.put(newName, to);
+				link(to, newName);
+			}
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+
+		// everyone who replies to them, until nobody's left replying to the old name
+		Set<String> from;
+		while ((from = pointing.remove(oldName)) != null) {
+			for (String other : from) {
+				Lock o = lock(other);
+				o.lock();
+				try {
+					if (partner.replace(other, oldName, newName)) {
+						link(newName, other);
+					}
+				} finally {
+					o.unlock();
+				}
+			}
+		}
+	}
+
+	private void link(String to, String user) {
+		pointing.compute(to, (k, users) -> {
+			if (users == null) {
+				users = new HashSet<String>();
+			}
+			users.add(user);
+			return users;
+		});
+	}
+
+	private void unlink(String to, String user) {
+		pointing.computeIfPresent(to, (k, users) -> {
+			users.remove(user);
+			return users.isEmpty() ? null : users;
+		});
+	}
+
+	private static int stripe(String name) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	private Lock lock(String name) {
+		return locks[stripe(name)];
+	}
+}
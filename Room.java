@@ -0,0 +1,39 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* a chatroom and who's in it
+* 'members' belongs to the room's loop and is only touched on that thread, so a broadcast walks
+* it without any locking - everyone else goes by 'occupants'
+* 'history' and 'batch' are the room's too, and are only touched on the same thread
+* in a cluster, 'elsewhere' is who's in it on other nodes - changed on the loop, read from anywhere
+**/
+public class Room {
+	final String name;
+	final RoomLoop loop;
+	final Members members; // SessionTable numbers
+	final AtomicInteger occupants; // members plus anyone who's joined but not been added by the loop yet
+	final History history; // what was said last, for whoever joins next
+	final Batch batch; // lines waiting to go out together, null unless batching is on
+	final TokenBucket limit; // chat lines a second, null unless chat.limitRoomLines is set
+	final Set<String> elsewhere; // members on other nodes, null unless there's a cluster
+
+	Room(String name, RoomLoop loop) {
+		this.name = name;
+		this.loop = loop;
+		this.members = new Members();
+		this.occupants = new AtomicInteger();
+		this.history = new History(loop);
+		this.batch = (Batch.WINDOW > 0) ? new Batch() : null;
+		this.limit = (Limits.ROOM_LINES == null) ? null : Limits.ROOM_LINES.bucket();
+		this.elsewhere = (Cluster.NODES > 1) ? ConcurrentHashMap.newKeySet() : null;
+	}
+
+	/**
+	* how many are in it, on every node
+	**/
+	int people() {
+		return occupants.get() + ((elsewhere == null) ? 0 : elsewhere.size());
+	}
+}
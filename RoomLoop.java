@@ -0,0 +1,112 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* a thread that owns a share of the chatrooms
+* every room is pinned to one loop by its name, and everything that touches a room's members
+* (joining, leaving, fanning a message out) runs here, so a room is only ever used by one thread
+* anyone can hand it work - the queue is lock free and the loop parks when there's nothing to do,
+* or until its next timer is due
+**/
+public class RoomLoop implements Runnable {
+	public static final int LOOPS = Integer.getInteger("chat.roomLoops", Runtime.getRuntime().availableProcessors());
+
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private PriorityQueue<Timer> timers; // soonest first, only touched on the loop
+	private volatile Thread thread;
+
+	private static class Timer {
+		long at; // System.nanoTime() it's due
+		Runnable task;
+
+		Timer(long at, Runnable task) {
+			this.at = at;
+			this.task = task;
+		}
+	}
+
+	public RoomLoop() {
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.timers = new PriorityQueue<Timer>((a, b) -> Long.signum(a.at - b.at));
+	}
+
+	public void start(String name) {
+		Thread t = new Thread(this, name);
+		t.setDaemon(true); // the server is kept up by its accept loop, not these
+		thread = t;
+		t.start();
+	}
+
+	/**
+	* queues 'task' to run on this loop
+	**/
+	public void execute(Runnable task) {
+		if (Metrics.ON) {
+			long queued = System.nanoTime();
+			Runnable t = task;
+			task = () -> {
+				Metrics.loopDelay.record(System.nanoTime() - queued);
+				t.run();
+			};
+		}
+		tasks.offer(task);
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	* runs 'task' on this loop once 'delay' nanos have gone by - only from the loop itself
+	**/
+	public void schedule(Runnable task, long delay) {
+		timers.add(new Timer(System.nanoTime() + delay, task));
+	}
+
+	/**
+	* true if the caller is this loop's own thread
+	**/
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			long wait = runTimers();
+			Runnable task = tasks.poll();
+			if (task == null) {
+				// execute() unparks us, and an early unpark just makes this return straight away
+				if (wait < 0) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, wait);
+				}
+				continue;
+			}
+			run(task);
+		}
+	}
+
+	/**
+	* runs the timers that are due, returns nanos until the next one or -1 if there isn't one
+	**/
+	private long runTimers() {
+		if (timers.isEmpty()) {
+			return -1;
+		}
+		long now = System.nanoTime();
+		Timer t;
+		while ((t = timers.peek()) != null && t.at - now <= 0) {
+			timers.poll();
+			run(t.task);
+		}
+		return (t == null) ? -1 : Math.max(1, t.at - now);
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			Log.error("room_task_failed", null, null, "error in room loop", e);
+		}
+	}
+}
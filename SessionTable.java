@@ -0,0 +1,68 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* every connected session, by a small number handed out when it connects
+* rooms keep their members as these numbers, so a broadcast is a walk over an int array and this
+* one, without hashing anything
+* numbers are reused once a session's closed - it's always out of its room by then
+**/
+public class SessionTable {
+	private volatile ChatServer.Session[] table;
+	private int[] free; // numbers given back, taken again before new ones
+	private int freeCount;
+	private int next; // lowest number never handed out
+	private Lock lock; // for add() and remove(), get() doesn't lock
+
+	public SessionTable() {
+		this.table = new ChatServer.Session[1024];
+		this.free = new int[64];
+		this.lock = new ReentrantLock();
+	}
+
+	/**
+	* gives 's' a number and returns it
+	**/
+	int add(ChatServer.Session s) {
+		lock.lock();
+		try {
+			int id = (freeCount > 0) ? free[--freeCount] : next++;
+			ChatServer.Session[] t = table;
+			if (id >= t.length) { // filled in before it's swapped in, so a reader never sees it missing
+				t = Arrays.copyOf(t, t.length * 2);
+				t[id] = s;
+				table = t;
+			} else {
+				t[id] = s;
+			}
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	* 'id''s session has closed, the number can go to someone else
+	**/
+	void remove(int id) {
+		lock.lock();
+		try {
+			table[id] = null;
+			if (freeCount == free.length) {
+				free = Arrays.copyOf(free, free.length * 2);
+			}
+			free[freeCount++] = id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	* the table as it is now, to look up a lot of sessions in a row
+	* anyone a caller heard about before calling this is in it
+	**/
+	ChatServer.Session[] snapshot() {
+		return table;
+	}
+}
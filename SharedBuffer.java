@@ -0,0 +1,211 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* a message encoded once (always UTF-8) into a direct buffer, which can then be queued for
+* any number of clients without copying
+* pooled buffers are reference counted - whoever queues one retains it, whoever is done with it
+* releases it, and the last release hands it back to the pool
+**/
+public class SharedBuffer {
+	public static final int CHUNK = 4096; // size of pooled buffers, bigger messages get their own
+	private static final int POOL_MAX = Integer.getInteger("chat.bufferPool", 4096);
+	private static final int SLOTS = 64; // threads at a time that get a cached view of each buffer, the rest make their own
+
+	private static final Lock poolLock = new ReentrantLock();
+	private static final SharedBuffer[] pool = new SharedBuffer[POOL_MAX];
+	private static int poolSize = 0;
+
+	// a thread takes a slot the first time it asks for a view - threads that come and go (like the writers
+	// in threads mode) give theirs back with releaseSlot() when they're done, so it can be used again
+	private static final Lock slotLock = new ReentrantLock();
+	private static final int[] freeSlots = new int[SLOTS];
+	private static int freeCount = 0;
+	private static int nextSlot = 0; // lowest slot never handed out
+	private static final ThreadLocal<int[]> slot = ThreadLocal.withInitial(() -> new int[] { -1 });
+	private static final ThreadLocal<CharsetEncoder> encoder = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder());
+
+	private final ByteBuffer buf;
+	private final ByteBuffer[] views; // read-only views, one per thread slot, so writers never share a position (null for one-offs)
+	private final AtomicInteger refs;
+	private final boolean pooled; // constants and one-offs are left to the gc
+	private int length;
+
+	private SharedBuffer(ByteBuffer buf, boolean pooled, boolean reused) {
+		this.buf = buf;
+		this.views = reused ? new ByteBuffer[SLOTS] : null;
+		this.refs = new AtomicInteger(1);
+		this.pooled = pooled;
+		this.length = buf.remaining();
+	}
+
+	/**
+	* encodes 'message' into a pooled buffer, the caller holds the one reference to it
+	**/
+	public static SharedBuffer encode(String message) {
+		if (message.length() * 3 > CHUNK) { // might not fit in a chunk
+			return wrap(message.getBytes(StandardCharsets.UTF_8));
+		}
+
+		SharedBuffer sb = take();
+		ByteBuffer b = sb.buf;
+		b.clear();
+		CharsetEncoder e = encoder.get();
+		e.reset();
+		e.encode(CharBuffer.wrap(message), b, true);
+		e.flush(b);
+		b.flip();
+		sb.length = b.limit();
+		sb.refs.set(1);
+		return sb;
+	}
+
+	/**
+	* the first 'len' bytes of 'bytes' in a pooled buffer if they fit, the caller holds the one reference to it
+	**/
+	public static SharedBuffer copyOf(byte[] bytes, int len) {
+		if (len > CHUNK) {
+			return wrap(Arrays.copyOf(bytes, len));
+		}
+
+		SharedBuffer sb = take();
+		ByteBuffer b = sb.buf;
+		b.clear();
+		b.put(bytes, 0, len);
+		b.flip();
+		sb.length = len;
+		sb.refs.set(1);
+		return sb;
+	}
+
+	/**
+	* a one-off message that isn't worth a pooled buffer - left to the gc
+	**/
+	public static SharedBuffer wrap(byte[] bytes) {
+		return new SharedBuffer(ByteBuffer.wrap(bytes), false, false);
+	}
+
+	/**
+	* encodes text that never changes, like the prompt - never pooled, retain/release do nothing
+	**/
+	public static SharedBuffer constant(String message) {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+		b.put(bytes);
+		b.flip();
+		return new SharedBuffer(b, false, true);
+	}
+
+	/**
+	* bytes 'from' to 'to' of an unpooled message, sharing its memory - for sending part of a cached one
+	**/
+	public SharedBuffer slice(int from, int to) {
+		ByteBuffer b = buf.duplicate();
+		b.limit(to);
+		b.position(from);
+		return new SharedBuffer(b.slice(), false, false);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void retain() {
+		if (pooled) {
+			refs.incrementAndGet();
+		}
+	}
+
+	public void release() {
+		if (pooled && refs.decrementAndGet() == 0) {
+			giveBack(this);
+		}
+	}
+
+	/**
+	* a view of the message starting 'offset' bytes in, for the calling thread to write from
+	**/
+	public ByteBuffer view(int offset) {
+		int[] mine = slot.get();
+		if (mine[0] < 0) {
+			mine[0] = takeSlot();
+		}
+		int i = mine[0];
+		ByteBuffer v;
+		if (views != null && i < SLOTS) {
+			v = views[i];
+			if (v == null) {
+				v = buf.asReadOnlyBuffer();
+				views[i] = v;
+			}
+		} else {
+			v = buf.asReadOnlyBuffer();
+		}
+		v.limit(length);
+		v.position(offset);
+		return v;
+	}
+
+	/**
+	* gives the calling thread's slot back, for a thread that's about to finish or go idle
+	* it takes one again if it asks for another view
+	**/
+	public static void releaseSlot() {
+		int[] mine = slot.get();
+		if (mine[0] >= 0 && mine[0] < SLOTS) {
+			slotLock.lock();
+			try {
+				freeSlots[freeCount++] = mine[0];
+			} finally {
+				slotLock.unlock();
+			}
+		}
+		mine[0] = -1;
+	}
+
+	/**
+	* a free slot, or SLOTS if they're all taken
+	**/
+	private static int takeSlot() {
+		slotLock.lock();
+		try {
+			if (freeCount > 0) {
+				return freeSlots[--freeCount];
+			}
+			return (nextSlot < SLOTS) ? nextSlot++ : SLOTS;
+		} finally {
+			slotLock.unlock();
+		}
+	}
+
+	private static SharedBuffer take() {
+		poolLock.lock();
+		try {
+			if (poolSize > 0) {
+				SharedBuffer sb = pool[--poolSize];
+				pool[poolSize] = null;
+				return sb;
+			}
+		} finally {
+			poolLock.unlock();
+		}
+		return new SharedBuffer(ByteBuffer.allocateDirect(CHUNK), true, true);
+	}
+
+	private static void giveBack(SharedBuffer sb) {
+		poolLock.lock();
+		try {
+			if (poolSize < pool.length) {
+				pool[poolSize++] = sb;
+			}
+		} finally {
+			poolLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+* the rooms and their settings on disk, so a restart comes back with all of them
+* a background thread writes a new one every so often if the rooms have changed - it walks the room
+* index without locking anything, so /createRoom and /deleteRoom never wait on it - into a file next to
+* the old one that's then renamed over it, so a crash halfway leaves the last good snapshot
+* at startup the file is memory mapped and read straight through before the server starts accepting
+**/
+public class Snapshot implements Runnable {
+	public static final String FILE = System.getProperty("chat.snapshot", ""); // empty for no snapshots
+	private static final int INTERVAL = Integer.getInteger("chat.snapshotInterval", 30); // seconds
+	private static final int MAGIC = 0x43485331; // "CHS1"
+	private static final int TRAILER = 4 + 8; // how many rooms, crc of everything before
+
+	/**
+	* what the server does with each room in the snapshot
+	**/
+	public interface Loader {
+		void room(String name, int history);
+	}
+
+	private File file;
+	private Collection<Room> rooms;
+	private AtomicLong version; // bumped on every change to the rooms
+	private long written; // the version in the file
+
+	public Snapshot(File file, Collection<Room> rooms) {
+		this.file = file;
+		this.rooms = rooms;
+		this.version = new AtomicLong();
+		this.written = 0;
+	}
+
+	public void changed() {
+		version.incrementAndGet();
+	}
+
+	/**
+	* reads every room in the snapshot, returns how many there were (0 if there's no snapshot yet)
+	**/
+	public int load(Loader l) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		try (FileChannel ch = FileChannel.open(file.toPath())) {
+			long size = ch.size();
+			if (size < 4 + TRAILER) {
+				throw new IOException("too short");
+			}
+			ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer body = b.duplicate();
+			body.limit((int) size - 8);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if (b.getLong((int) size - 8) != crc.getValue()) {
+				throw new IOException("checksum doesn't match");
+			}
+			if (b.getInt() != MAGIC) {
+				throw new IOException("not a snapshot");
+			}
+			int count = b.getInt((int) size - TRAILER);
+			byte[] name = new byte[256];
+			for (int i = 0; i < count; i++) {
+				int len = b.getInt();
+				if (len > name.length) {
+					name = new byte[len];
+				}
+				b.get(name, 0, len);
+				int history = b.getInt();
+				l.room(new String(name, 0, len, StandardCharsets.UTF_8), history);
+			}
+			return count;
+		}
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "snapshot");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(INTERVAL));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long v = version.get(); // read first, so a change made while we write gets the next one
+			if (v == written) {
+				continue;
+			}
+			try {
+				write();
+				written = v;
+			} catch (IOException e) {
+				Log.error("snapshot_write_failed", null, null, "error writing snapshot " + file, e);
+			}
+		}
+	}
+
+	/**
+	* writes out every room there is and swaps the new file in
+	**/
+	void write() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			BufferedOutputStream buffered = new BufferedOutputStream(fos, 64 * 1024);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+			out.writeInt(MAGIC);
+			int count = 0;
+			for (Room r : rooms) {
+				byte[] name = r.name.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+				out.writeInt(r.history.size());
+				count++;
+			}
+			out.writeInt(count);
+			out.flush();
+			new DataOutputStream(buffered).writeLong(crc.getValue()); // not part of its own checksum
+			buffered.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
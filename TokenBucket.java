@@ -0,0 +1,115 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* a rate limit - 'rate' tokens a second, up to 'burst' of them saved up
+* kept as the one time at which the bucket would be full again (generic cell rate algorithm), so a
+* check is a read and a compare-and-set on one long, with no lock and no refill thread
+**/
+public class TokenBucket {
+	private final long interval; // nanos each token takes to come back
+	private final long tolerance; // nanos of tokens the bucket holds when it's full
+	private final AtomicLong full; // System.nanoTime() the bucket is full again - in the past if it already is
+
+	public TokenBucket(double rate, long burst) {
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.tolerance = interval * Math.max(1, burst);
+		this.full = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	* how long until 'n' tokens are there, 0 if they are now - doesn't take any
+	**/
+	public long delayFor(long n) {
+		long now = System.nanoTime();
+		long f = full.get();
+		long start = (f - now < 0) ? now : f;
+		return Math.max(0, start + cost(n) - now - tolerance);
+	}
+
+	/**
+	* takes 'n' tokens if they're there, otherwise returns how long until they will be, taking nothing
+	**/
+	public long tryTake(long n) {
+		long cost = cost(n);
+		while (true) {
+			long now = System.nanoTime();
+			long f = full.get();
+			long next = ((f - now < 0) ? now : f) + cost;
+			long over = next - now - tolerance;
+			if (over > 0) {
+				return over;
+			}
+			if (full.compareAndSet(f, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	* takes 'n' tokens whether they're there or not, going into debt if need be
+	**/
+	public void take(long n) {
+		long cost = cost(n);
+		while (true) {
+			long now = System.nanoTime();
+			long f = full.get();
+			if (full.compareAndSet(f, ((f - now < 0) ? now : f) + cost)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	* true if nothing's been taken for long enough that it's back to full
+	**/
+	public boolean isFull() {
+		return full.get() - System.nanoTime() <= 0;
+	}
+
+	private long cost(long n) {
+		// more than the bucket holds would never fit, so it costs a full bucket instead
+		return (n >= tolerance / interval) ? tolerance : n * interval;
+	}
+
+	/**
+	* a limit read from a system property like "10/30" - 10 a second in bursts of up to 30
+	* the burst can be left off, and defaults to the rate
+	**/
+	static class Limit {
+		final double rate;
+		final long burst;
+
+		Limit(double rate, long burst) {
+			this.rate = rate;
+			this.burst = burst;
+		}
+
+		/**
+		* null if the property isn't set (or is 0), i.e. no limit - or 'fallback' if that's given
+		**/
+		static Limit get(String property) {
+			return get(property, "");
+		}
+
+		static Limit get(String property, String fallback) {
+			String value = System.getProperty(property, fallback).trim();
+			if (value.isEmpty()) {
+				return null;
+			}
+			try {
+				int slash = value.indexOf('/');
+				double rate = Double.parseDouble(slash < 0 ? value : value.substring(0, slash));
+				long burst = (slash < 0) ? (long) Math.ceil(rate) : Long.parseLong(value.substring(slash + 1).trim());
+				return (rate > 0) ? new Limit(rate, burst) : null;
+			} catch (NumberFormatException e) {
+				System.err.println("Ignoring " + property + "=" + value + ", it should look like 10/30");
+				return null;
+			}
+		}
+
+		TokenBucket bucket() {
+			return new TokenBucket(rate, burst);
+		}
+	}
+}
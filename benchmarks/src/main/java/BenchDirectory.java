@@ -0,0 +1,56 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+* bench.Directory on top of HashRing and Cluster
+* lives in the default package so it can reach them
+**/
+public class BenchDirectory implements bench.Directory {
+	private HashRing ring;
+	private Cluster[] nodes; // null on rings made by withNode() and withoutNode()
+
+	public BenchDirectory(int count, int virtualNodes, String[] names) {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = i;
+		}
+		this.ring = new HashRing(ids, virtualNodes);
+		if (names == null) {
+			return;
+		}
+
+		MessageBus bus = new LoopbackBus(count);
+		this.nodes = new Cluster[count];
+		for (int i = 0; i < count; i++) {
+			nodes[i] = new Cluster(i, bus);
+			nodes[i].start(m -> {
+			});
+		}
+		for (int i = 0; i < names.length; i++) {
+			nodes[nodes[0].owner(names[i])].claim(names[i], i % count);
+		}
+	}
+
+	private BenchDirectory(HashRing ring) {
+		this.ring = ring;
+	}
+
+	public int owner(String name) {
+		return ring.owner(name);
+	}
+
+	public bench.Directory withNode() {
+		return new BenchDirectory(ring.with(ring.size()));
+	}
+
+	public bench.Directory withoutNode(int node) {
+		return new BenchDirectory(ring.without(node));
+	}
+
+	public int lookup(String name) {
+		int owner = nodes[0].owner(name);
+		Cluster from = nodes[(owner + 1) % nodes.length];
+		CompletableFuture<Integer> where = new CompletableFuture<Integer>();
+		from.ask(owner, Cluster.LOOKUP, name, null, null, reply -> where.complete(reply.number));
+		return where.join();
+	}
+}
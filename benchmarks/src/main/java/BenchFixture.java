@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+* bench.Fixture on top of a socketless ChatServer
+* lives in the default package so it can reach the server's package-private methods
+**/
+public class BenchFixture implements bench.Fixture {
+	private ChatServer server;
+	private ArrayList<ChatServer.Session> sessions;
+	private ChatServer.Session lobby; // who types command() lines
+	private ChatServer.Session talker; // who types broadcast() and chat() lines
+	private ArrayList<ChatServer.Session> pairs; // who pm() goes from and to, two by two
+	private ChatServer.Session[] crowd; // who typedBy() lines are typed by, each by one thread at a time
+	private Room room;
+	private int nextUser;
+	private int nextRoom;
+	private long sent;
+
+	public BenchFixture() {
+		this.server = new ChatServer();
+		this.sessions = new ArrayList<ChatServer.Session>();
+		this.pairs = new ArrayList<ChatServer.Session>();
+		this.lobby = login();
+		// never started - the benchmark thread stands in for the room's loop
+		this.room = new Room("bench", new RoomLoop());
+		this.talker = login();
+		join(talker);
+	}
+
+	/**
+	* an in-memory client whose socket takes everything straight away - what's sent goes through a real
+	* OutboundQueue (offer, gather the views, advance past them) the way a connection's would, and is counted
+	**/
+	private class Sink implements Connection {
+		private OutboundQueue queue = new OutboundQueue();
+		private ByteBuffer[] gather = new ByteBuffer[16];
+
+		public void send(SharedBuffer a, SharedBuffer b, SharedBuffer c) {
+			sent += pass(a, b, c);
+		}
+
+		/**
+		* queues the message and writes it straight out again, returns its bytes
+		**/
+		long pass(SharedBuffer a, SharedBuffer b, SharedBuffer c) {
+			queue.offer(a, b, c);
+			int n = queue.gather(gather);
+			long written = 0;
+			for (int i = 0; i < n; i++) {
+				written += gather[i].remaining();
+				gather[i].position(gather[i].limit()); // as if the socket wrote it
+			}
+			queue.advance(written);
+			return written;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	* a Sink that rooms on any loop can send to at once, locked around its queue like a real connection
+	* (its bytes aren't counted in sent())
+	**/
+	private class SharedSink implements Connection {
+		private Sink sink = new Sink();
+
+		public synchronized void send(SharedBuffer a, SharedBuffer b, SharedBuffer c) {
+			sink.pass(a, b, c);
+		}
+
+		public void close() {
+		}
+	}
+
+	private ChatServer.Session login() {
+		return login(new Sink(), "user" + nextUser++);
+	}
+
+	private ChatServer.Session login(Connection conn, String name) {
+		ChatServer.Session s = server.new Session(conn);
+		server.getUsername(s, name);
+		sessions.add(s);
+		return s;
+	}
+
+	private void join(ChatServer.Session s) {
+		s.room = room;
+		room.members.add(s.id);
+		room.occupants.incrementAndGet();
+	}
+
+	public void users(int n) {
+		for (int i = 0; i < n; i++) {
+			login();
+		}
+	}
+
+	public void rooms(int n) {
+		for (int i = 0; i < n; i++) {
+			server.createRoom("room" + nextRoom++, lobby.username);
+		}
+	}
+
+	public void members(int n) {
+		while (room.members.size() < n) {
+			join(login());
+		}
+	}
+
+	public void broadcast(String message) {
+		server.sendMessage(room, talker.prefix, message);
+	}
+
+	public long printUsers() {
+		server.printUsers(lobby);
+		return sent;
+	}
+
+	public long printRooms() {
+		server.printRooms(lobby);
+		return sent;
+	}
+
+	public void pairs(int n) {
+		for (int i = 0; i < 2 * n; i++) {
+			pairs.add(login());
+		}
+	}
+
+	public void pm(int pair, String message, boolean oneLine) {
+		ChatServer.Session from = pairs.get(2 * pair);
+		String to = pairs.get(2 * pair + 1).username;
+		if (oneLine) {
+			from.line("/PM " + to + " " + message);
+		} else {
+			from.line("/PM " + to);
+			from.line(message);
+		}
+	}
+
+	public void typed(int pair, String line) {
+		pairs.get(2 * pair).line(line);
+	}
+
+	public void relogin(int pair) {
+		ChatServer.Session s = pairs.get(2 * pair);
+		String name = s.username;
+		s.line("/quit");
+		s = server.new Session(new Sink());
+		server.getUsername(s, name);
+		pairs.set(2 * pair, s);
+		pm(pair, "back again", true);
+	}
+
+	public void crowd(int n) {
+		crowd = new ChatServer.Session[n];
+		for (int i = 0; i < n; i++) {
+			crowd[i] = login(new SharedSink(), "user" + nextUser++);
+		}
+	}
+
+	public void typedBy(int user, String line) {
+		crowd[user].line(line);
+	}
+
+	public void reconnect(int user, String name) {
+		crowd[user].line("/quit");
+		ChatServer.Session s = server.new Session(new SharedSink());
+		server.getUsername(s, name);
+		crowd[user] = s;
+	}
+
+	public boolean settled() {
+		return server.settled();
+	}
+
+	public String inconsistency() {
+		return server.inconsistency();
+	}
+
+	public void command(String line) {
+		server.commands(lobby, line);
+	}
+
+	public void chat(String line) {
+		server.chat(talker, line);
+	}
+
+	public String history() {
+		SharedBuffer earlier = room.history.replay();
+		if (earlier == null) {
+			return "";
+		}
+		byte[] b = new byte[earlier.length()];
+		earlier.view(0).get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	public String restOfCommand(String line) {
+		return server.getRestOfCommand(line, CommandTable.argStart(line));
+	}
+
+	public long sent() {
+		return sent;
+	}
+}
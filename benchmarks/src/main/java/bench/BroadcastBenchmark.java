@@ -0,0 +1,43 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* sendMessage() fanning one chat line out to everyone in a room
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	@Param({ "10", "100", "1000" })
+	int members;
+
+	Fixture fixture;
+
+	@Setup
+	public void setup() {
+		fixture = Fixture.create();
+		fixture.members(members);
+	}
+
+	@Benchmark
+	public long fanOut() {
+		fixture.broadcast("hello everyone, how's it going?");
+		return fixture.sent();
+	}
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* parsing and dispatching a line of input, in the lobby (commands()) and in a room (chat())
+* the room only has the one user in it, so a chat line is mostly dispatch and its own echo
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	Fixture fixture;
+	String joinLine;
+
+	@Setup
+	public void setup() {
+		fixture = Fixture.create();
+		joinLine = "/join a room with a longer name";
+	}
+
+	@State(Scope.Thread)
+	public static class LobbyLine {
+		@Param({ "/help", "/rooms", "/nope", "/join no such room" })
+		String line;
+	}
+
+	@State(Scope.Thread)
+	public static class RoomLine {
+		@Param({ "/help", "just a normal chat line" })
+		String line;
+	}
+
+	@Benchmark
+	public long lobby(LobbyLine in) {
+		fixture.command(in.line);
+		return fixture.sent();
+	}
+
+	@Benchmark
+	public long room(RoomLine in) {
+		fixture.chat(in.line);
+		return fixture.sent();
+	}
+
+	@Benchmark
+	public String restOfCommand() {
+		return fixture.restOfCommand(joinLine);
+	}
+}
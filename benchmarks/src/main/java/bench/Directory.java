@@ -0,0 +1,40 @@
+package bench;
+
+/**
+* the cluster's username directory, for the benchmarks to call into
+* like Fixture, the implementation (BenchDirectory) lives in the default package and is found by name
+**/
+public interface Directory {
+	/**
+	* a consistent hash ring of nodes 0 to 'nodes' - 1, each at 'virtualNodes' places, and a cluster of
+	* that many nodes on a loopback bus with 'names' users logged in, spread over the nodes
+	**/
+	static Directory create(int nodes, int virtualNodes, String[] names) {
+		try {
+			return (Directory) Class.forName("BenchDirectory").getDeclaredConstructor(int.class, int.class, String[].class)
+					.newInstance(nodes, virtualNodes, names);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("BenchDirectory missing from the build", e);
+		}
+	}
+
+	/**
+	* the node that owns 'name' on the ring
+	**/
+	int owner(String name);
+
+	/**
+	* the ring with one more node on it
+	**/
+	Directory withNode();
+
+	/**
+	* the ring without 'node'
+	**/
+	Directory withoutNode(int node);
+
+	/**
+	* asks the owner of 'name', from another node and over the bus, which node they're on - and waits
+	**/
+	int lookup(String name);
+}
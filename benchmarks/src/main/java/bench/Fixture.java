@@ -0,0 +1,122 @@
+package bench;
+
+/**
+* a ChatServer with no sockets, for the benchmarks to call into
+* the server lives in the default package, which java won't let us import from, so the
+* implementation (BenchFixture) is found by name instead
+* every client is an in-memory connection with a real outbound queue, whose socket takes whatever it's
+* given - so what's sent is queued, gathered and written past as usual, and counted
+**/
+public interface Fixture {
+	/**
+	* a new fixture with an empty server (just the 'main' room)
+	**/
+	static Fixture create() {
+		try {
+			return (Fixture) Class.forName("BenchFixture").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("BenchFixture missing from the build", e);
+		}
+	}
+
+	/**
+	* logs in 'n' users, all in the lobby
+	**/
+	void users(int n);
+
+	/**
+	* creates 'n' more rooms
+	**/
+	void rooms(int n);
+
+	/**
+	* puts 'n' members in a room called 'bench' (and logs them in)
+	**/
+	void members(int n);
+
+	/**
+	* one member of 'bench' says 'message' to the room
+	**/
+	void broadcast(String message);
+
+	/**
+	* sends the /users list to a user in the lobby, returns sent()
+	**/
+	long printUsers();
+
+	/**
+	* sends the /rooms list to a user in the lobby, returns sent()
+	**/
+	long printRooms();
+
+	/**
+	* logs in 'n' pairs of users, all in the lobby, for pm()
+	**/
+	void pairs(int n);
+
+	/**
+	* the first user of pair 'pair' PMs 'message' to the second, either all on one line ('/PM name message')
+	* or by typing '/PM name' and then the message when asked for it
+	**/
+	void pm(int pair, String message, boolean oneLine);
+
+	/**
+	* the first user of pair 'pair' types 'line'
+	**/
+	void typed(int pair, String line);
+
+	/**
+	* the first user of pair 'pair' quits, and logs back in under the same name and PMs the second again
+	**/
+	void relogin(int pair);
+
+	/**
+	* logs in 'n' users for typedBy() and reconnect(), whose connections can be sent to from any thread
+	**/
+	void crowd(int n);
+
+	/**
+	* crowd() user 'user' types 'line' - from any thread, as long as it's one at a time for each user
+	**/
+	void typedBy(int user, String line);
+
+	/**
+	* crowd() user 'user' quits, and someone new logs in as 'name' in their place
+	**/
+	void reconnect(int user, String name);
+
+	/**
+	* true once every line typed so far has been handled
+	**/
+	boolean settled();
+
+	/**
+	* what's out of step between the server's lists of who's where, or null if nothing is
+	**/
+	String inconsistency();
+
+	/**
+	* a line typed by a user in the lobby
+	**/
+	void command(String line);
+
+	/**
+	* a line typed by a user in the 'bench' room
+	**/
+	void chat(String line);
+
+	/**
+	* what the 'bench' room would replay to someone joining it, "" if nothing
+	**/
+	String history();
+
+	/**
+	* the argument of a /command line
+	**/
+	String restOfCommand(String line);
+
+	/**
+	* bytes queued to every client so far
+	**/
+	long sent();
+}
@@ -0,0 +1,34 @@
+package bench;
+
+/**
+* heap taken up by logged in users, all in one room - the sessions, the maps they're in and the
+* room's member list (the in-memory connections are tiny next to real sockets and their buffers)
+*   java -cp target/benchmarks.jar bench.Footprint [users]
+**/
+public class Footprint {
+	public static void main(String[] args) {
+		int users = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		Fixture fixture = Fixture.create();
+		long before = used();
+		fixture.members(users);
+		long after = used();
+		System.out.printf("%d users: %.1f MB, %d bytes each%n", users, (after - before) / 1e6, (after - before) / users);
+		fixture.broadcast("still here"); // keeps the fixture alive until after measuring
+	}
+
+	private static long used() {
+		Runtime r = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) { // a few goes, in case a collection doesn't get everything first time
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, r.totalMemory() - r.freeMemory());
+		}
+		return used;
+	}
+}
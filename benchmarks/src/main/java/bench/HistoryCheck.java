@@ -0,0 +1,68 @@
+package bench;
+
+/**
+* /history resizing a room's history, checked against what it should replay afterwards - the newest
+* lines, oldest first, whether the ring had wrapped or not, and lines added after still coming out right
+* exits 1 at the first step that's wrong
+*   java -cp target/benchmarks.jar bench.HistoryCheck
+**/
+public class HistoryCheck {
+	private static Fixture fixture;
+	private static int said; // messages said so far, numbered from 1
+
+	public static void main(String[] args) {
+		fixture = Fixture.create(); // 'bench' keeps chat.history lines (20) to start with
+
+		say(6);
+		expect("6 lines, nothing dropped", 1, 6);
+		fixture.chat("/history 2");
+		expect("shrunk to 2 before it was full", 5, 6);
+		say(1);
+		expect("a line after shrinking", 6, 7);
+
+		fixture.chat("/history 5");
+		say(12); // wraps the ring more than once
+		expect("5 lines, wrapped", 15, 19);
+		fixture.chat("/history 3");
+		expect("shrunk to 3 after wrapping", 17, 19);
+		say(4);
+		expect("lines after shrinking a wrapped ring", 21, 23);
+
+		fixture.chat("/history 8");
+		expect("grown to 8, nothing new yet", 21, 23);
+		say(7);
+		expect("grown to 8 and filled", 23, 30);
+
+		fixture.chat("/history 8");
+		expect("resized to the same size", 23, 30);
+
+		fixture.chat("/history 0");
+		expect("shrunk to nothing", 0, -1);
+		fixture.chat("/history 4");
+		say(2);
+		expect("grown again from nothing", 31, 32);
+
+		System.out.println("history resizes replay the newest lines, in order");
+	}
+
+	private static void say(int n) {
+		for (int i = 0; i < n; i++) {
+			fixture.chat("msg " + ++said);
+		}
+	}
+
+	/**
+	* the room should replay messages 'from' to 'to', and nothing else
+	**/
+	private static void expect(String step, int from, int to) {
+		StringBuilder want = new StringBuilder();
+		for (int i = from; i <= to; i++) {
+			want.append(">> user1: msg ").append(i).append('\n');
+		}
+		String got = fixture.history();
+		if (!got.equals(want.toString())) {
+			System.out.println(step + ": expected\n" + want + "got\n" + got.replace("\0", "\\0"));
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* printUsers() and printRooms() with lots of users and rooms about, and paging deep into /users
+* (with the default chat.pageSize of 50)
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+	@Param({ "100", "1000", "10000" })
+	int count;
+
+	Fixture fixture;
+
+	@Setup
+	public void setup() {
+		fixture = Fixture.create();
+		fixture.users(count);
+		fixture.rooms(count);
+	}
+
+	@Benchmark
+	public long printUsers() {
+		return fixture.printUsers();
+	}
+
+	@Benchmark
+	public long printRooms() {
+		return fixture.printRooms();
+	}
+
+	/**
+	* the last page of users by number, which walks past all the ones before it
+	**/
+	@Benchmark
+	public long lastPageByNumber() {
+		fixture.command("/users * " + (count / 50));
+		return fixture.sent();
+	}
+
+	/**
+	* a page near the end carried on from the one before, as the "There's more" line suggests
+	**/
+	@Benchmark
+	public long lastPageByCursor() {
+		fixture.command("/users * " + (count / 50) + " after user9");
+		return fixture.sent();
+	}
+}
@@ -0,0 +1,506 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+
+/**
+* closed-loop load generator - simulates lots of telnet clients against a running server
+* every client logs in, joins one of the load rooms and then does one thing at a time (a chat line,
+* a /PM, a /replyPM, /users, or a trip out to /rooms and back), waiting for the server to finish
+* answering before picking the next
+* chat lines and PMs carry the time they were written, so every client that reads one records how long
+* it took to reach them - that's the delivery latency, the response latency is how long each client
+* waited on its own action
+* runs once per connection count given, e.g.
+*   java -cp target/benchmarks.jar bench.LoadGenerator -port 5555 -clients 100,1000,5000
+* against a cluster (-nodes 3), most of the people in a room are on other nodes, so most deliveries
+* go across the message bus
+**/
+public class LoadGenerator {
+	enum Action { CHAT, PM, REPLY, USERS, ROOMS }
+
+	private static final long HIGHEST = 60_000_000L; // microseconds, anything slower than a minute is clipped
+
+	// what each action waits to see, in order - any one of the strings at each step will do
+	// chat lines (and a /PM to someone who's gone, which ends up as a chat line) also finish on their own echo
+	private static final String[][][] DONE = {
+		{},
+		{ { "PM sent to", "User not found" } },
+		{ { "PM sent to", "haven't been private", "User not found" } },
+		{ { "The following users are online" }, { "End of list." } },
+		{ { "Active rooms are" }, { "to leave the chatroom" } },
+	};
+
+	private String host = "127.0.0.1";
+	private int port = 5555;
+	private int nodes = 1; // a cluster on consecutive ports from 'port', with the clients spread over them
+	private int[] steps = { 100 };
+	private int rooms = 10;
+	private int[] weights = { 80, 5, 5, 5, 5 }; // chance of each Action, out of their sum
+	private int think = 0; // ms a client waits between actions
+	private int warmup = 5;
+	private int duration = 20;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int timeout = 5000; // ms before an action is given up on
+	private String runId = Long.toString(System.nanoTime() % 1000000, 36);
+
+	// shared with the workers for the step that's running
+	private volatile Client[] clients;
+	private volatile long measureFrom;
+	private volatile long measureTo;
+	private volatile boolean stop;
+	private AtomicInteger ready = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator g = new LoadGenerator();
+		if (!g.parse(args)) {
+			usage();
+			System.exit(1);
+		}
+		g.run();
+	}
+
+	private static void usage() {
+		System.err.println("usage: LoadGenerator [-host h] [-port p] [-nodes n] [-clients n,n,...] [-rooms n]");
+		System.err.println("         [-mix chat=80,pm=5,reply=5,users=5,rooms=5] [-think ms]");
+		System.err.println("         [-warmup s] [-duration s] [-threads n] [-timeout ms]");
+	}
+
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				String v = args[i + 1];
+				switch (args[i]) {
+					case "-host": host = v; break;
+					case "-port": port = Integer.parseInt(v); break;
+					case "-nodes": nodes = Math.max(1, Integer.parseInt(v)); break;
+					case "-clients": steps = ints(v.split(",")); break;
+					case "-rooms": rooms = Integer.parseInt(v); break;
+					case "-mix": weights = mix(v); break;
+					case "-think": think = Integer.parseInt(v); break;
+					case "-warmup": warmup = Integer.parseInt(v); break;
+					case "-duration": duration = Integer.parseInt(v); break;
+					case "-threads": threads = Integer.parseInt(v); break;
+					case "-timeout": timeout = Integer.parseInt(v); break;
+					default: return false;
+				}
+			}
+			return args.length % 2 == 0;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	private static int[] ints(String[] s) {
+		int[] n = new int[s.length];
+		for (int i = 0; i < s.length; i++) {
+			n[i] = Integer.parseInt(s[i].trim());
+		}
+		return n;
+	}
+
+	private static int[] mix(String v) {
+		int[] w = new int[Action.values().length];
+		for (String part : v.split(",")) {
+			String[] kv = part.split("=");
+			w[Action.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+		}
+		return w;
+	}
+
+	private void run() throws Exception {
+		System.out.println("server " + host + ":" + port + (nodes > 1 ? " and the next " + (nodes - 1) + " ports" : "") + ", " + rooms + " rooms, mix " + mixString() + ", think " + think + "ms, "
+				+ warmup + "s warmup, " + duration + "s measured, " + threads + " threads");
+		System.out.printf("%8s %11s %13s %9s   %-33s   %-33s%n", "clients", "actions/s", "deliveries/s", "timeouts",
+				"response ms p50/p99/p99.9/max", "delivery ms p50/p99/p99.9/max");
+		for (int i = 0; i < steps.length; i++) {
+			step(i, steps[i]);
+			Thread.sleep(2000); // let the server clean up after the last lot
+		}
+	}
+
+	private String mixString() {
+		String s = "";
+		for (Action a : Action.values()) {
+			s += (s.isEmpty() ? "" : ",") + a.name().toLowerCase() + "=" + weights[a.ordinal()];
+		}
+		return s;
+	}
+
+	/**
+	* one run at 'n' connections
+	**/
+	private void step(int step, int n) throws Exception {
+		Worker[] workers = new Worker[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+		}
+		Client[] cs = new Client[n];
+		for (int i = 0; i < n; i++) {
+			cs[i] = new Client(i, "lg" + runId + "s" + step + "c" + i, "load" + (i % Math.max(1, rooms)), workers[i % workers.length]);
+		}
+		clients = cs;
+		ready.set(0);
+		stop = false;
+		measureFrom = Long.MAX_VALUE;
+		measureTo = Long.MAX_VALUE;
+		Thread[] ts = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			ts[i] = new Thread(workers[i], "load-" + i);
+			ts[i].start();
+		}
+
+		for (Client c : cs) {
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port + c.id % nodes));
+			ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+			c.worker.add(c, ch);
+		}
+		long deadline = System.nanoTime() + 60_000_000_000L;
+		while (ready.get() < n && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		if (ready.get() < n) {
+			System.err.println("only " + ready.get() + " of " + n + " clients got into a room, carrying on anyway");
+		}
+
+		Thread.sleep(warmup * 1000L);
+		long from = System.nanoTime();
+		measureTo = from + duration * 1_000_000_000L;
+		measureFrom = from;
+		Thread.sleep(duration * 1000L);
+		stop = true;
+		for (Thread t : ts) {
+			t.join();
+		}
+
+		Histogram response = new Histogram(HIGHEST, 3);
+		Histogram delivery = new Histogram(HIGHEST, 3);
+		Histogram[] byAction = new Histogram[Action.values().length];
+		long timeouts = 0;
+		for (int a = 0; a < byAction.length; a++) {
+			byAction[a] = new Histogram(HIGHEST, 3);
+		}
+		for (Worker w : workers) {
+			delivery.add(w.delivery);
+			for (int a = 0; a < byAction.length; a++) {
+				byAction[a].add(w.response[a]);
+				response.add(w.response[a]);
+			}
+			timeouts += w.timeouts;
+		}
+
+		System.out.printf("%8d %11.0f %13.0f %9d   %-33s   %-33s%n", n, response.getTotalCount() / (double) duration,
+				delivery.getTotalCount() / (double) duration, timeouts, percentiles(response), percentiles(delivery));
+		for (Action a : Action.values()) {
+			if (byAction[a.ordinal()].getTotalCount() > 0) {
+				System.out.printf("%8s %11.0f %13s %9s   %-33s%n", a.name().toLowerCase(),
+						byAction[a.ordinal()].getTotalCount() / (double) duration, "", "", percentiles(byAction[a.ordinal()]));
+			}
+		}
+	}
+
+	private static String percentiles(Histogram h) {
+		if (h.getTotalCount() == 0) {
+			return "-";
+		}
+		return ms(h.getValueAtPercentile(50)) + "/" + ms(h.getValueAtPercentile(99)) + "/"
+				+ ms(h.getValueAtPercentile(99.9)) + "/" + ms(h.getMaxValue());
+	}
+
+	private static String ms(long micros) {
+		return String.format("%.2f", micros / 1000.0);
+	}
+
+	private enum State { LOGIN, JOINING, READY }
+
+	/**
+	* one simulated user
+	* only ever touched by its worker's thread
+	**/
+	private class Client {
+		final int id;
+		final String name;
+		final String room;
+		final Worker worker;
+		SocketChannel channel;
+		SelectionKey key;
+		State state = State.LOGIN;
+		StringBuilder partial = new StringBuilder();
+		ByteBuffer out; // what the socket hasn't taken yet, null when there isn't any
+		Action action; // what they're waiting on, null when idle
+		long started; // when it was sent
+		int done; // how many of its DONE steps have been seen
+		long nextAt; // when to start the next action
+
+		Client(int id, String name, String room, Worker worker) {
+			this.id = id;
+			this.name = name;
+			this.room = room;
+			this.worker = worker;
+		}
+
+		void send(String s) throws IOException {
+			ByteBuffer b = ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+			if (out == null) {
+				channel.write(b);
+				if (!b.hasRemaining()) {
+					return;
+				}
+				out = ByteBuffer.allocate(Math.max(4096, b.remaining()));
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			if (out.remaining() < b.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate((out.position() + b.remaining()) * 2);
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(b);
+		}
+
+		void flush() throws IOException {
+			out.flip();
+			channel.write(out);
+			if (out.hasRemaining()) {
+				out.compact();
+			} else {
+				out = null;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	* a selector thread driving a share of the clients
+	**/
+	private class Worker implements Runnable {
+		final Selector selector;
+		final ConcurrentLinkedQueue<Client> added = new ConcurrentLinkedQueue<Client>();
+		final ArrayList<Client> mine = new ArrayList<Client>();
+		final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		final Random random;
+		final Histogram delivery = new Histogram(HIGHEST, 3);
+		final Histogram[] response = new Histogram[Action.values().length];
+		long timeouts;
+		final int weightSum;
+
+		Worker(int n) throws IOException {
+			this.selector = Selector.open();
+			this.random = new Random(n);
+			for (int a = 0; a < response.length; a++) {
+				response[a] = new Histogram(HIGHEST, 3);
+			}
+			int sum = 0;
+			for (int w : weights) {
+				sum += w;
+			}
+			this.weightSum = sum;
+		}
+
+		void add(Client c, SocketChannel ch) {
+			c.channel = ch;
+			added.add(c);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stop) {
+					selector.select(10);
+					Client c;
+					while ((c = added.poll()) != null) {
+						c.channel.configureBlocking(false);
+						c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+						mine.add(c);
+						c.send(c.name + "\r\n"); // answers the username prompt
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						c = (Client) key.attachment();
+						try {
+							if (key.isValid() && key.isWritable()) {
+								c.flush();
+							}
+							if (key.isValid() && key.isReadable()) {
+								read(c);
+							}
+						} catch (IOException e) {
+							key.cancel();
+							c.channel.close();
+						}
+					}
+
+					long now = System.nanoTime();
+					for (int i = 0; i < mine.size(); i++) {
+						c = mine.get(i);
+						if (c.state != State.READY || !c.key.isValid()) {
+							continue;
+						}
+						if (c.action != null && now - c.started > timeout * 1_000_000L) {
+							if (c.started >= measureFrom && c.started < measureTo) {
+								timeouts++;
+							}
+							finish(c, now, false);
+						}
+						if (c.action == null && now >= c.nextAt) {
+							next(c, now);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Load worker failed: " + e);
+			} finally {
+				for (Client c : mine) {
+					try {
+						c.channel.close();
+					} catch (IOException e) {
+						// going anyway
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// going anyway
+				}
+			}
+		}
+
+		private void read(Client c) throws IOException {
+			in.clear();
+			int len = c.channel.read(in);
+			if (len == -1) {
+				throw new IOException("server closed " + c.name);
+			}
+			long now = System.nanoTime();
+			byte[] b = in.array();
+			for (int i = 0; i < len; i++) {
+				if (b[i] == '\n') {
+					line(c, c.partial.toString(), now);
+					c.partial.setLength(0);
+				} else if (b[i] != '\r') {
+					c.partial.append((char) (b[i] & 0xff));
+				}
+			}
+		}
+
+		private void line(Client c, String line, long now) throws IOException {
+			if (c.state == State.LOGIN) {
+				if (line.contains("Welcome " + c.name + "!")) {
+					c.send("/createRoom " + c.room + "\r\n/join " + c.room + "\r\n");
+					c.state = State.JOINING;
+				}
+				return;
+			}
+			if (c.state == State.JOINING) {
+				if (line.contains("to leave the chatroom")) {
+					c.state = State.READY;
+					ready.incrementAndGet();
+				}
+				return;
+			}
+
+			int at = line.indexOf('@');
+			if (at != -1 && !line.contains("PM sent to")) {
+				// someone's chat line or PM - how long did it take to get here
+				int dot = line.indexOf('.', at);
+				int end = line.indexOf(' ', at);
+				if (dot != -1 && end > dot) {
+					try {
+						int from = Integer.parseInt(line.substring(at + 1, dot));
+						long sent = Long.parseLong(line.substring(dot + 1, end));
+						if (sent >= measureFrom && sent < measureTo) {
+							delivery.recordValue(Math.min(HIGHEST, (now - sent) / 1000));
+						}
+						if (c.action != null && from == c.id && sent == c.started) {
+							finish(c, now, true);
+							return;
+						}
+					} catch (NumberFormatException e) {
+						// not one of ours
+					}
+				}
+			}
+
+			if (c.action != null) {
+				String[][] steps = DONE[c.action.ordinal()];
+				if (c.done < steps.length) {
+					for (String s : steps[c.done]) {
+						if (line.contains(s)) {
+							c.done++;
+							break;
+						}
+					}
+					if (c.done == steps.length) {
+						finish(c, now, true);
+					}
+				}
+			}
+		}
+
+		private void finish(Client c, long now, boolean ok) {
+			if (ok && c.started >= measureFrom && c.started < measureTo) {
+				response[c.action.ordinal()].recordValue(Math.min(HIGHEST, (now - c.started) / 1000));
+			}
+			c.action = null;
+			c.nextAt = now + think * 1_000_000L;
+		}
+
+		/**
+		* starts the client's next action
+		**/
+		private void next(Client c, long now) throws IOException {
+			int r = random.nextInt(Math.max(1, weightSum));
+			Action a = Action.CHAT;
+			for (Action x : Action.values()) {
+				r -= weights[x.ordinal()];
+				if (r < 0) {
+					a = x;
+					break;
+				}
+			}
+			c.action = a;
+			c.done = 0;
+			c.started = now;
+			String tag = "@" + c.id + "." + now + " ";
+			switch (a) {
+				case CHAT:
+					c.send(tag + "hello from the load generator\r\n");
+					break;
+				case PM:
+					Client[] cs = clients;
+					Client to = cs[random.nextInt(cs.length)];
+					if (to == c) {
+						to = cs[(to.id + 1) % cs.length];
+					}
+					c.send("/PM " + to.name + " " + tag + "psst\r\n");
+					break;
+				case REPLY:
+					c.send("/replyPM " + tag + "psst back\r\n");
+					break;
+				case USERS:
+					c.send("/users\r\n");
+					break;
+				case ROOMS:
+					c.send("/leave\r\n/rooms\r\n/join " + c.room + "\r\n");
+					break;
+			}
+		}
+	}
+}
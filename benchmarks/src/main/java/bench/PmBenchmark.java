@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* private messages between thousands of pairs of users, each one going to the next pair along
+* - 'prompt' types '/PM name' and then the message, 'oneLine' types '/PM name message'
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PmBenchmark {
+	@Param({ "1000", "10000" })
+	int pairs;
+
+	@Param({ "prompt", "oneLine" })
+	String form;
+
+	Fixture fixture;
+	boolean oneLine;
+	int next;
+
+	@Setup
+	public void setup() {
+		fixture = Fixture.create();
+		fixture.pairs(pairs);
+		oneLine = form.equals("oneLine");
+	}
+
+	@Benchmark
+	public long pm() {
+		next = (next + 1) % pairs;
+		fixture.pm(next, "hey, are you coming to the thing later?", oneLine);
+		return fixture.sent();
+	}
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import java.util.Random;
+
+/**
+* hammers a socketless server's lists of who's where from several threads at once, then checks they
+* still agree - every room's members are the sessions in it (and its occupant count matches), and
+* socks has every logged in session under its name and nothing else
+* each thread types for its own share of the users: /join, /leave, /changeUsername (to names that
+* are often taken), /createRoom and /deleteRoom, chat lines, and quitting to come back as someone new
+* after each round it waits for the server to settle and checks, and fails if anything's out of step
+* or the whole run takes longer than the timeout
+*   java -cp target/benchmarks.jar bench.RegistryStress [-threads n] [-users n] [-rooms n] [-lines n] [-rounds n] [-timeout s]
+**/
+public class RegistryStress {
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int users = 400;
+	private int rooms = 8;
+	private int lines = 2000; // typed by each user each round
+	private int rounds = 5;
+	private int timeout = 120; // seconds for the whole run
+
+	private Fixture fixture;
+	private int[] generation; // how many times each user has come back as someone new
+
+	public static void main(String[] args) throws Exception {
+		RegistryStress stress = new RegistryStress();
+		if (!stress.parse(args)) {
+			System.err.println("usage: RegistryStress [-threads n] [-users n] [-rooms n] [-lines n] [-rounds n] [-timeout s]");
+			System.exit(1);
+		}
+		System.exit(stress.run() ? 0 : 1);
+	}
+
+	private boolean parse(String[] args) {
+		if (args.length % 2 != 0) {
+			return false;
+		}
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				int value = Integer.parseInt(args[i + 1]);
+				switch (args[i]) {
+					case "-threads": threads = value; break;
+					case "-users": users = value; break;
+					case "-rooms": rooms = value; break;
+					case "-lines": lines = value; break;
+					case "-rounds": rounds = value; break;
+					case "-timeout": timeout = value; break;
+					default: return false;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return threads > 0 && users >= threads && rooms > 0;
+	}
+
+	private boolean run() throws InterruptedException {
+		Thread watchdog = new Thread(() -> {
+			try {
+				Thread.sleep(timeout * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			System.out.println("timed out after " + timeout + " s - something's stuck");
+			System.exit(1);
+		}, "watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+
+		fixture = Fixture.create();
+		fixture.rooms(rooms);
+		fixture.crowd(users);
+		generation = new int[users];
+
+		for (int round = 1; round <= rounds; round++) {
+			long start = System.nanoTime();
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				int first = t;
+				long seed = round * 1000L + t;
+				workers[t] = new Thread(() -> type(first, seed), "stress-" + t);
+				workers[t].start();
+			}
+			for (Thread w : workers) {
+				w.join();
+			}
+			while (!fixture.settled()) {
+				Thread.sleep(5);
+			}
+			String wrong = fixture.inconsistency();
+			long ms = (System.nanoTime() - start) / 1000000;
+			if (wrong != null) {
+				System.out.println("round " + round + ": " + wrong);
+				return false;
+			}
+			System.out.printf("round %d: %d lines in %d ms, all consistent%n", round, (long) users * lines, ms);
+		}
+		watchdog.interrupt();
+		return true;
+	}
+
+	/**
+	* types every line for users 'first', 'first' + threads, ... one user after another
+	**/
+	private void type(int first, long seed) {
+		Random r = new Random(seed);
+		for (int i = 0; i < lines; i++) {
+			for (int user = first; user < users; user += threads) {
+				int roll = r.nextInt(100);
+				if (roll < 30) {
+					fixture.typedBy(user, "/join room" + r.nextInt(rooms));
+				} else if (roll < 55) {
+					fixture.typedBy(user, "/leave");
+				} else if (roll < 70) {
+					fixture.typedBy(user, "/changeUsername name" + r.nextInt(users));
+				} else if (roll < 80) {
+					fixture.typedBy(user, "/deleteRoom room" + r.nextInt(rooms));
+				} else if (roll < 88) {
+					fixture.typedBy(user, "/createRoom room" + r.nextInt(rooms));
+				} else if (roll < 97) {
+					fixture.typedBy(user, "hello from " + user);
+				} else {
+					fixture.reconnect(user, "user" + user + "." + ++generation[user]);
+				}
+			}
+		}
+	}
+}
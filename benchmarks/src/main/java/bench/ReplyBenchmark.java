@@ -0,0 +1,66 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* changing name and logging off with 'pairs' pairs of users who've all PM'd each other, so everyone
+* has someone to /replyPM
+* - rename(): someone changes their name (and back, the next time round)
+* - relogin(): someone quits, logs back in and PMs the same person again
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+	@Param({ "100", "10000" })
+	int pairs;
+
+	Fixture fixture;
+	int next;
+	boolean renamed; // whether everyone's on their second name, this time round
+
+	@Setup
+	public void setup() {
+		fixture = Fixture.create();
+		fixture.pairs(pairs);
+		for (int i = 0; i < pairs; i++) {
+			fixture.pm(i, "hi", true);
+		}
+	}
+
+	private int pair() {
+		next = (next + 1) % pairs;
+		if (next == 0) {
+			renamed = !renamed;
+		}
+		return next;
+	}
+
+	@Benchmark
+	public long rename() {
+		int pair = pair();
+		fixture.typed(pair, "/changeUsername " + (renamed ? "renamed" : "again") + pair);
+		return fixture.sent();
+	}
+
+	@Benchmark
+	public long relogin() {
+		fixture.relogin(pair());
+		return fixture.sent();
+	}
+}
@@ -0,0 +1,75 @@
+package bench;
+
+/**
+* what a node joining or leaving the cluster costs - how many usernames change owner (and so would
+* have to be handed over), next to hash % n, and how evenly the names are spread to start with
+*   java -cp target/benchmarks.jar bench.RingBalance [-names n] [-nodes n,n,...] [-virtualNodes n,n,...]
+**/
+public class RingBalance {
+	public static void main(String[] args) {
+		int count = 100000;
+		int[] nodeCounts = { 3, 10, 50 };
+		int[] virtualCounts = { 1, 16, 128, 512 };
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-names": count = Integer.parseInt(args[i + 1]); break;
+				case "-nodes": nodeCounts = ints(args[i + 1]); break;
+				case "-virtualNodes": virtualCounts = ints(args[i + 1]); break;
+				default:
+					System.err.println("usage: RingBalance [-names n] [-nodes n,n,...] [-virtualNodes n,n,...]");
+					System.exit(1);
+			}
+		}
+
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = "user" + i;
+		}
+
+		System.out.println(count + " names, % of them that change owner when a node joins or leaves, and the");
+		System.out.println("most any node owns over what they'd each own if it was even");
+		System.out.printf("%6s %8s %9s %8s %8s %8s %8s%n", "nodes", "virtual", "ring ms", "join", "leave", "even", "% n join");
+		for (int n : nodeCounts) {
+			for (int v : virtualCounts) {
+				Directory ring = Directory.create(n, v, null);
+				long start = System.nanoTime();
+				Directory joined = ring.withNode(); // the new ring every node would build
+				long built = System.nanoTime() - start;
+				Directory left = ring.withoutNode(n - 1);
+
+				int[] owned = new int[n];
+				int movedJoin = 0;
+				int movedLeave = 0;
+				int movedModulo = 0;
+				for (String name : names) {
+					int owner = ring.owner(name);
+					owned[owner]++;
+					if (joined.owner(name) != owner) {
+						movedJoin++;
+					}
+					if (left.owner(name) != owner) {
+						movedLeave++;
+					}
+					if (Math.floorMod(name.hashCode(), n + 1) != Math.floorMod(name.hashCode(), n)) {
+						movedModulo++;
+					}
+				}
+				int most = 0;
+				for (int o : owned) {
+					most = Math.max(most, o);
+				}
+				System.out.printf("%6d %8d %9.2f %7.1f%% %7.1f%% %8.2f %7.1f%%%n", n, v, built / 1e6, 100.0 * movedJoin / count,
+						100.0 * movedLeave / count, most / (count / (double) n), 100.0 * movedModulo / count);
+			}
+		}
+	}
+
+	private static int[] ints(String v) {
+		String[] s = v.split(",");
+		int[] n = new int[s.length];
+		for (int i = 0; i < s.length; i++) {
+			n[i] = Integer.parseInt(s[i].trim());
+		}
+		return n;
+	}
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* finding the node that owns a username - on the ring, and by asking that node over the loopback bus
+* (what a PM to someone on another node waits for)
+**/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBenchmark {
+	@Param({ "3", "10", "100" })
+	int nodes;
+
+	@Param({ "128" })
+	int virtualNodes;
+
+	Directory directory;
+	String[] names;
+	int next;
+
+	@Setup
+	public void setup() {
+		names = new String[10000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "user" + i;
+		}
+		directory = Directory.create(nodes, virtualNodes, names);
+	}
+
+	private String name() {
+		next = (next + 1) % names.length;
+		return names[next];
+	}
+
+	@Benchmark
+	public int owner() {
+		return directory.owner(name());
+	}
+
+	@Benchmark
+	public int lookup() {
+		return directory.lookup(name());
+	}
+}